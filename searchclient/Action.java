@@ -74,4 +74,37 @@ public enum Action
         this.boxRowDelta = brd; 
         this.boxColDelta = bcd;  
     }
+
+    // The reverse of every action by ordinal, filled in once when the class is
+    // initialized, after the constants exist
+    private static final Action[] REVERSES = new Action[Action.values().length];
+
+    static
+    {
+        Action[] actions = Action.values();
+        for (Action action : actions)
+        {
+            ActionType type = action.type == ActionType.Push ? ActionType.Pull
+                            : action.type == ActionType.Pull ? ActionType.Push : action.type;
+            for (Action other : actions)
+            {
+                if (other.type == type &&
+                    other.agentRowDelta == -action.agentRowDelta && other.agentColDelta == -action.agentColDelta &&
+                    other.boxRowDelta == -action.boxRowDelta && other.boxColDelta == -action.boxColDelta)
+                {
+                    REVERSES[action.ordinal()] = other;
+                }
+            }
+        }
+    }
+
+    /*
+     * The action that undoes this one when carried out from the resulting state:
+     * moves go back the opposite way, a push is undone by pulling the box back
+     * and a pull by pushing it back.
+     */
+    public Action reverse()
+    {
+        return REVERSES[this.ordinal()];
+    }
 }
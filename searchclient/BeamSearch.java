@@ -0,0 +1,114 @@
+package searchclient;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Beam search (-beam [B]): breadth-first search that keeps only the B best
+ * states of every layer by the heuristic, for levels where every complete
+ * strategy runs out of memory. Plans are not optimal, and the search can miss
+ * a plan altogether if the states leading to it fall out of the beam.
+ *
+ * A layer is collected in a bounded min-max heap, so a new state takes the
+ * place of the worst one when the layer is full, and expanded from its best
+ * state on. Duplicates are dropped within the new layer by a hash set, and
+ * against every state expanded before by their fingerprints (see
+ * FingerprintSet), which keeps the beam from cycling on a plateau of the
+ * heuristic. At most B states are expanded per layer, so together with the
+ * ancestors of the beam memory is O(B * depth) however large the level.
+ *
+ * With -beamrestart a failed search (empty beam or maxDepth layers without a
+ * goal) is restarted with a beam four times as wide, up to maxWidth.
+ */
+public class BeamSearch
+{
+    public static boolean restart = false;
+    public static int maxDepth = 10_000;
+    public static int maxWidth = 1 << 20;
+
+    public static Action[][] search(State initialState, int width)
+    {
+        // Plans are extracted through parent pointers, and the beam is of full states
+        SearchContext context = initialState.context.copy();
+        context.operatorDecomposition = false;
+        initialState = initialState.withContext(context);
+
+        while (true)
+        {
+            Action[][] plan = run(initialState, width);
+            if (plan != null || !restart || width >= maxWidth)
+            {
+                return plan;
+            }
+            width = (int) Math.min(maxWidth, 4L * width);
+            System.err.format("Restarting beam search with width %,d.\n", width);
+        }
+    }
+
+    private static Action[][] run(State initialState, int width)
+    {
+        long startTime = System.nanoTime();
+        Heuristic heuristic = new HeuristicGreedy(initialState);
+        if (initialState.isGoalState())
+        {
+            return initialState.extractPlan();
+        }
+
+        FingerprintSet expanded = new FingerprintSet();
+        MinMaxHeap<State> beam = new MinMaxHeap<>(width);
+        beam.offer(heuristic.h(initialState), initialState);
+        long generated = 1;
+
+        for (int depth = 0; depth < maxDepth && !beam.isEmpty(); depth++)
+        {
+            ArrayList<State> layer = new ArrayList<>(beam.size());
+            while (!beam.isEmpty())
+            {
+                State s = beam.pollMin();
+                expanded.add(s.fingerprint());
+                layer.add(s);
+            }
+
+            HashSet<State> next = new HashSet<>();
+            for (State s : layer)
+            {
+                for (State child : s.getExpandedStates())
+                {
+                    ++generated;
+                    if (child.isGoalState())
+                    {
+                        System.err.format("Beam search: goal found at depth %d, width %,d, #Generated: %,d, " +
+                                          "%.3f s\n%s\n", depth + 1, width, generated,
+                                          (System.nanoTime() - startTime) / 1_000_000_000d, Memory.stringRep());
+                        return child.extractPlan();
+                    }
+                    if (next.contains(child) || expanded.contains(child.fingerprint()))
+                    {
+                        continue;
+                    }
+
+                    State dropped = beam.offer(heuristic.h(child), child);
+                    if (dropped != child)
+                    {
+                        next.add(child);
+                    }
+                    if (dropped != null)
+                    {
+                        next.remove(dropped);
+                    }
+                }
+            }
+
+            if ((depth + 1) % 100 == 0)
+            {
+                System.err.format("Beam search: depth %d, best h %d, #Generated: %,d, %.3f s\n%s\n", depth + 1,
+                                  beam.isEmpty() ? -1 : beam.minKey(), generated,
+                                  (System.nanoTime() - startTime) / 1_000_000_000d, Memory.stringRep());
+            }
+        }
+
+        System.err.format("Beam search with width %,d found no plan, #Generated: %,d, %.3f s.\n", width, generated,
+                          (System.nanoTime() - startTime) / 1_000_000_000d);
+        return null;
+    }
+}
@@ -0,0 +1,355 @@
+package searchclient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Bidirectional breadth-first search (-bidir). A forward search from the initial
+ * state and a backward search from a goal configuration run in turns, always
+ * expanding the side with the smaller frontier. Each side keeps its generated
+ * states in a hash table, and the search stops as soon as one side generates a
+ * state that the other side has already seen.
+ *
+ * The backward side expands predecessors (State.getPredecessorStates), which run
+ * the Action deltas in reverse: moves go back, pushes become pulls and pulls
+ * become pushes. The plan is the forward path to the meeting state followed by
+ * the reversed actions of the backward path from it to the goal configuration.
+ *
+ * Goal states are not unique in general, so the backward search starts from a
+ * set of goal configurations: agents with goals on their goals, boxes of letters
+ * with goals on those goals, other boxes where they start, and agents without
+ * goals on any cell they can reach, in every combination. If the backward side
+ * runs out of states without meeting the forward side, the forward side
+ * continues on its own, so the search is still complete.
+ */
+public class BidirectionalSearch
+{
+    // Beyond this many placements of the agents without goals, they are left
+    // where they start instead
+    private static final int MAX_GOAL_CONFIGURATIONS = 65536;
+
+    /*
+     * Returns the goal configurations of the level, or an empty list if they are
+     * not determined by the goals: a letter with goals must have exactly as many
+     * boxes as goals.
+     */
+    public static ArrayList<State> goalConfigurations(State initialState)
+    {
+        ArrayList<State> configurations = new ArrayList<>();
+        int numAgents = initialState.agentRows.length;
+        int[] agentRows = Arrays.copyOf(initialState.agentRows, numAgents);
+        int[] agentCols = Arrays.copyOf(initialState.agentCols, numAgents);
+        boolean[] hasGoal = new boolean[numAgents];
+        char[][] boxes = new char[initialState.boxes.length][];
+        for (int row = 0; row < boxes.length; ++row)
+        {
+            boxes[row] = Arrays.copyOf(initialState.boxes[row], initialState.boxes[row].length);
+        }
+
+        int[] boxCount = new int[26];
+        int[] goalCount = new int[26];
+        for (int row = 0; row < boxes.length; ++row)
+        {
+            for (int col = 0; col < boxes[row].length; ++col)
+            {
+                if (boxes[row][col] != 0)
+                {
+                    ++boxCount[boxes[row][col] - 'A'];
+                }
+                char goal = initialState.level.goals[row][col];
+                if ('A' <= goal && goal <= 'Z')
+                {
+                    ++goalCount[goal - 'A'];
+                }
+                else if ('0' <= goal && goal <= '9' && goal - '0' < numAgents)
+                {
+                    agentRows[goal - '0'] = row;
+                    agentCols[goal - '0'] = col;
+                    hasGoal[goal - '0'] = true;
+                }
+            }
+        }
+
+        for (int letter = 0; letter < 26; ++letter)
+        {
+            if (goalCount[letter] > 0 && goalCount[letter] != boxCount[letter])
+            {
+                return configurations;
+            }
+        }
+
+        // Move boxes of letters with goals onto the goals
+        for (int row = 0; row < boxes.length; ++row)
+        {
+            for (int col = 0; col < boxes[row].length; ++col)
+            {
+                char box = boxes[row][col];
+                if (box != 0 && goalCount[box - 'A'] > 0)
+                {
+                    boxes[row][col] = 0;
+                }
+                char goal = initialState.level.goals[row][col];
+                if ('A' <= goal && goal <= 'Z')
+                {
+                    boxes[row][col] = goal;
+                }
+            }
+        }
+
+        // No two objects may share a cell
+        boolean[][] occupied = new boolean[boxes.length][];
+        for (int row = 0; row < boxes.length; ++row)
+        {
+            occupied[row] = new boolean[boxes[row].length];
+            for (int col = 0; col < boxes[row].length; ++col)
+            {
+                occupied[row][col] = boxes[row][col] != 0;
+            }
+        }
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            if (hasGoal[agent])
+            {
+                if (occupied[agentRows[agent]][agentCols[agent]])
+                {
+                    return configurations;
+                }
+                occupied[agentRows[agent]][agentCols[agent]] = true;
+            }
+        }
+
+        // The cells each agent without a goal can end on
+        int[][] cells = new int[numAgents][];
+        long placements = 1;
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            if (!hasGoal[agent])
+            {
+                cells[agent] = reachableCells(initialState, agent, occupied);
+                placements *= Math.max(1, cells[agent].length);
+                if (placements > MAX_GOAL_CONFIGURATIONS)
+                {
+                    break;
+                }
+            }
+        }
+        if (placements > MAX_GOAL_CONFIGURATIONS)
+        {
+            System.err.println("Too many goal configurations, agents without goals stay where they start.");
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                if (!hasGoal[agent])
+                {
+                    cells[agent] = new int[]{agentRows[agent] * initialState.level.numCols + agentCols[agent]};
+                }
+            }
+        }
+
+        place(initialState, 0, cells, agentRows, agentCols, boxes, occupied, configurations);
+        return configurations;
+    }
+
+    /*
+     * Cells that agent can walk to from where it starts, ignoring boxes, that are
+     * not occupied in the goal configuration.
+     */
+    private static int[] reachableCells(State initialState, int agent, boolean[][] occupied)
+    {
+        DistanceGrid grid = DistanceGrid.shortestPaths((char) ('0' + agent), initialState.level.walls,
+                                                       initialState.agentRows[agent], initialState.agentCols[agent]);
+        int numCols = initialState.level.numCols;
+        int[] cells = new int[initialState.level.numCells];
+        int count = 0;
+        for (int row = 0; row < occupied.length; ++row)
+        {
+            for (int col = 0; col < occupied[row].length; ++col)
+            {
+                if (grid.distances[row][col] >= 0 && !occupied[row][col])
+                {
+                    cells[count++] = row * numCols + col;
+                }
+            }
+        }
+        return Arrays.copyOf(cells, count);
+    }
+
+    /*
+     * Places the agents from agent on that have no goal on each of their cells in
+     * turn, and adds a goal configuration for every placement without overlaps.
+     */
+    private static void place(State initialState, int agent, int[][] cells, int[] agentRows, int[] agentCols,
+                              char[][] boxes, boolean[][] occupied, ArrayList<State> configurations)
+    {
+        int numAgents = agentRows.length;
+        if (agent == numAgents)
+        {
+            configurations.add(State.relocated(initialState.level, Arrays.copyOf(agentRows, numAgents),
+                                               Arrays.copyOf(agentCols, numAgents), boxes, initialState.context));
+            return;
+        }
+        if (cells[agent] == null)
+        {
+            place(initialState, agent + 1, cells, agentRows, agentCols, boxes, occupied, configurations);
+            return;
+        }
+
+        int numCols = initialState.level.numCols;
+        for (int cell : cells[agent])
+        {
+            int row = cell / numCols;
+            int col = cell % numCols;
+            if (occupied[row][col])
+            {
+                continue;
+            }
+            agentRows[agent] = row;
+            agentCols[agent] = col;
+            occupied[row][col] = true;
+            place(initialState, agent + 1, cells, agentRows, agentCols, boxes, occupied, configurations);
+            occupied[row][col] = false;
+        }
+    }
+
+    public static Action[][] search(State initialState)
+    {
+        if (initialState.isGoalState())
+        {
+            return new Action[0][];
+        }
+
+        // Plans are read off parent pointers and agents are matched by number, so
+        // the trail store, operator decomposition and symmetry reduction are off.
+        // Tunnel macros are off too, as the backward side can't undo them.
+        SearchContext context = initialState.context.copy();
+        context.operatorDecomposition = false;
+        context.symmetryReduction = false;
+        context.tunnelMacros = false;
+        initialState = initialState.withContext(context);
+
+        ArrayList<State> goalStates = goalConfigurations(initialState);
+        if (goalStates.isEmpty() || !goalStates.get(0).isGoalState())
+        {
+            System.err.println("Bidirectional search needs determined goal configurations, searching forward only.");
+            goalStates.clear();
+        }
+        else
+        {
+            System.err.format("Searching backward from %,d goal configurations.\n", goalStates.size());
+        }
+
+        return search(initialState, goalStates);
+    }
+
+    private static Action[][] search(State initialState, ArrayList<State> goalStates)
+    {
+        long startTime = System.nanoTime();
+
+        ArrayDeque<State> forwardFrontier = new ArrayDeque<>(65536);
+        HashMap<State, State> forwardSeen = new HashMap<>(65536);
+        forwardFrontier.add(initialState);
+        forwardSeen.put(initialState, initialState);
+
+        ArrayDeque<State> backwardFrontier = new ArrayDeque<>(65536);
+        HashMap<State, State> backwardSeen = new HashMap<>(65536);
+        for (State goalState : goalStates)
+        {
+            backwardFrontier.add(goalState);
+            backwardSeen.put(goalState, goalState);
+        }
+
+        // Whole layers are expanded at a time. A meeting found while expanding a
+        // layer may not be the shortest one through that layer, so the layer is
+        // finished and the shortest meeting is kept.
+        State bestForward = null;
+        State bestBackward = null;
+        int iterations = 0;
+        while (!forwardFrontier.isEmpty())
+        {
+            boolean backward = !backwardFrontier.isEmpty() && backwardFrontier.size() < forwardFrontier.size();
+            ArrayDeque<State> frontier = backward ? backwardFrontier : forwardFrontier;
+            HashMap<State, State> seen = backward ? backwardSeen : forwardSeen;
+            HashMap<State, State> otherSeen = backward ? forwardSeen : backwardSeen;
+
+            for (int layer = frontier.size(); layer > 0; --layer)
+            {
+                if (++iterations % 10000 == 0)
+                {
+                    printStatus(forwardSeen.size(), backwardSeen.size(), startTime);
+                }
+
+                State state = frontier.pollFirst();
+                for (State next : backward ? state.getPredecessorStates() : state.getExpandedStates())
+                {
+                    State meeting = otherSeen.get(next);
+                    if (meeting == null && !backward && next.isGoalState())
+                    {
+                        meeting = next;
+                    }
+                    if (meeting != null)
+                    {
+                        State f = backward ? meeting : next;
+                        State b = backward ? next : meeting;
+                        if (bestForward == null || length(f, b) < length(bestForward, bestBackward))
+                        {
+                            bestForward = f;
+                            bestBackward = b;
+                        }
+                    }
+                    else if (seen.putIfAbsent(next, next) == null)
+                    {
+                        frontier.addLast(next);
+                    }
+                }
+            }
+
+            if (bestForward != null)
+            {
+                printStatus(forwardSeen.size(), backwardSeen.size(), startTime);
+                return splice(bestForward, bestBackward == bestForward ? null : bestBackward);
+            }
+        }
+
+        return null;
+    }
+
+    // Length of the plan through a meeting. A forward goal state meets itself
+    // and is only counted once.
+    private static int length(State forward, State backward)
+    {
+        return forward.g() + (backward == forward ? 0 : backward.g());
+    }
+
+    /*
+     * Joins the forward path to the meeting state with the backward path from it
+     * to the goal configuration (if any).
+     */
+    private static Action[][] splice(State forward, State backward)
+    {
+        Action[][] forwardPlan = forward.extractPlan();
+        int backwardLength = backward == null ? 0 : backward.g();
+
+        Action[][] plan = Arrays.copyOf(forwardPlan, forwardPlan.length + backwardLength);
+        int step = forwardPlan.length;
+        for (State state = backward; state != null && state.jointAction != null; state = state.parent)
+        {
+            Action[] jointAction = new Action[state.jointAction.length];
+            for (int agent = 0; agent < jointAction.length; ++agent)
+            {
+                jointAction[agent] = state.jointAction[agent].reverse();
+            }
+            plan[step++] = jointAction;
+        }
+
+        System.err.format("Bidirectional search met after %,d forward and %,d backward steps.\n",
+                          forwardPlan.length, backwardLength);
+        return plan;
+    }
+
+    private static void printStatus(int forward, int backward, long startTime)
+    {
+        System.err.format("Bidirectional: #Forward: %,8d, #Backward: %,8d, Time: %3.3f s\n%s\n", forward, backward,
+                          (System.nanoTime() - startTime) / 1_000_000_000d, Memory.stringRep());
+    }
+}
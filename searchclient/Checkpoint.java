@@ -0,0 +1,392 @@
+package searchclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Snapshots of a running graph search, so that a long search can be continued
+ * by a later invocation ("-checkpoint <file>" and "-resume").
+ *
+ * A snapshot holds the trail store, the closed set as fingerprints and the
+ * frontier in the order it would be popped, each frontier state compactly
+ * encoded (see StateCodec) with its g-value and trail id. Checkpointing
+ * therefore runs the search with the trail store from the start, so that the
+ * ancestry of every state can be written out. A resumed search keeps its closed
+ * set as fingerprints, as in lean mode.
+ *
+ * Snapshots are written every "-checkpointevery <seconds>" (default 300) under
+ * a temporary name and moved over the previous one, so a run killed while
+ * writing leaves the last complete snapshot in place. A snapshot is only resumed
+ * on the same level with the same search strategy.
+ */
+public class Checkpoint
+{
+    public static File file = null;
+    public static boolean resume = false;
+    public static double intervalSeconds = 300;
+
+    private static final int MAGIC = 0x53434B50;
+    private static final int VERSION = 1;
+
+    private static long lastSave = System.nanoTime();
+
+    public static class Snapshot
+    {
+        public final FingerprintSet closed;
+        public final int iterations;
+
+        Snapshot(FingerprintSet closed, int iterations)
+        {
+            this.closed = closed;
+            this.iterations = iterations;
+        }
+    }
+
+    public static boolean isEnabled()
+    {
+        return file != null;
+    }
+
+    public static boolean isDue()
+    {
+        return file != null && (System.nanoTime() - lastSave) / 1_000_000_000d >= intervalSeconds;
+    }
+
+    /*
+     * Writes a snapshot of the search. The frontier is drained to write it in pop
+     * order and then refilled. Exactly one of expanded and compact is the closed
+     * set.
+     */
+    public static void save(Frontier frontier, HashSet<State> expanded, FingerprintSet compact, int iterations,
+                            State initialState)
+    {
+        long start = System.nanoTime();
+        StateCodec codec = new StateCodec(initialState);
+        int numAgents = initialState.agentRows.length;
+
+        ArrayList<State> states = new ArrayList<>(frontier.size());
+        while (!frontier.isEmpty())
+        {
+            states.add(frontier.pop());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"))
+        {
+            raf.setLength(0);
+            Output out = new Output(raf.getChannel());
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putString(LevelCache.key(initialState.level));
+            out.putString(frontier.getName());
+            out.putInt(numAgents);
+            out.putInt(codec.words);
+            out.putInt(iterations);
+
+            // Recording the frontier's trail ids first, as they may still be missing
+            int[] trailIds = new int[states.size()];
+            for (int i = 0; i < states.size(); ++i)
+            {
+                trailIds[i] = states.get(i).trailId();
+            }
+
+            TrailStore trail = initialState.context.trail;
+            int[] parents = trail.parentArray();
+            byte[] actions = trail.actionArray();
+            out.putInt(trail.size());
+            for (int id = 0; id < trail.size(); ++id)
+            {
+                out.putInt(parents[id]);
+            }
+            for (int i = 0; i < trail.size() * numAgents; ++i)
+            {
+                out.putByte(actions[i]);
+            }
+
+            out.putInt(expanded != null ? expanded.size() : compact.size());
+            if (expanded != null)
+            {
+                for (State s : expanded)
+                {
+                    out.putLong(s.fingerprint());
+                }
+            }
+            else
+            {
+                compact.forEach(out::putLong);
+            }
+
+            long[] record = new long[codec.words];
+            out.putInt(states.size());
+            for (int i = 0; i < states.size(); ++i)
+            {
+                State s = states.get(i);
+                codec.encode(s, record, 0);
+                for (long word : record)
+                {
+                    out.putLong(word);
+                }
+                out.putInt(s.g());
+                out.putInt(trailIds[i]);
+            }
+            out.flush();
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            System.err.println("Couldn't write checkpoint " + file + ": " + e.getMessage());
+            temp.delete();
+        }
+        finally
+        {
+            refill(frontier, states);
+        }
+
+        try
+        {
+            if (temp.exists())
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                System.err.format("Checkpoint: %,d frontier states written to %s in %.3f s.\n", states.size(), file,
+                                  (System.nanoTime() - start) / 1_000_000_000d);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't write checkpoint " + file + ": " + e.getMessage());
+        }
+        lastSave = System.nanoTime();
+    }
+
+    /*
+     * Restores the snapshot into the (empty) frontier and the trail store.
+     * Returns null, leaving both untouched, if there is no snapshot of this level
+     * and strategy.
+     */
+    public static Snapshot load(Frontier frontier, State initialState)
+    {
+        if (file == null || !file.isFile())
+        {
+            System.err.println("No checkpoint to resume, starting a new search.");
+            return null;
+        }
+
+        StateCodec codec = new StateCodec(initialState);
+        int numAgents = initialState.agentRows.length;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            Input in = new Input(raf.getChannel());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || !in.getString().equals(LevelCache.key(initialState.level)) ||
+                !in.getString().equals(frontier.getName()) || in.getInt() != numAgents || in.getInt() != codec.words)
+            {
+                System.err.println("Checkpoint " + file + " is of another level or strategy, starting a new search.");
+                return null;
+            }
+            int iterations = in.getInt();
+
+            int trailSize = in.getInt();
+            int[] parents = new int[Math.max(16, trailSize)];
+            byte[] actions = new byte[parents.length * numAgents];
+            for (int id = 0; id < trailSize; ++id)
+            {
+                parents[id] = in.getInt();
+            }
+            for (int i = 0; i < trailSize * numAgents; ++i)
+            {
+                actions[i] = in.getByte();
+            }
+
+            int closedSize = in.getInt();
+            FingerprintSet closed = new FingerprintSet(closedSize * 2);
+            for (int i = 0; i < closedSize; ++i)
+            {
+                closed.add(in.getLong());
+            }
+
+            int frontierSize = in.getInt();
+            ArrayList<State> states = new ArrayList<>(frontierSize);
+            long[] record = new long[codec.words];
+            for (int i = 0; i < frontierSize; ++i)
+            {
+                for (int word = 0; word < record.length; ++word)
+                {
+                    record[word] = in.getLong();
+                }
+                int g = in.getInt();
+                int trailId = in.getInt();
+                states.add(State.restored(codec.decode(record, 0), g, trailId));
+            }
+
+            initialState.context.trail = new TrailStore(numAgents, parents, actions, trailSize);
+            refill(frontier, states);
+            System.err.format("Resumed checkpoint %s: %,d expanded, %,d frontier states.\n", file, closedSize,
+                              frontierSize);
+            lastSave = System.nanoTime();
+            return new Snapshot(closed, iterations);
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            System.err.println("Couldn't read checkpoint " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // States are in pop order; a stack pops them in that order if pushed in reverse.
+    private static void refill(Frontier frontier, ArrayList<State> states)
+    {
+        boolean reverse = frontier instanceof FrontierDFS;
+        for (int i = 0; i < states.size(); ++i)
+        {
+            frontier.add(states.get(reverse ? states.size() - 1 - i : i));
+        }
+    }
+
+    /*
+     * Buffered writes to a file channel. Methods used as lambdas can't throw
+     * IOException, so failures are wrapped.
+     */
+    private static class Output
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        Output(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void ensure(int bytes)
+        {
+            if (this.buffer.remaining() < bytes)
+            {
+                this.flush();
+            }
+        }
+
+        void putByte(byte value)
+        {
+            this.ensure(1);
+            this.buffer.put(value);
+        }
+
+        void putInt(int value)
+        {
+            this.ensure(4);
+            this.buffer.putInt(value);
+        }
+
+        void putLong(long value)
+        {
+            this.ensure(8);
+            this.buffer.putLong(value);
+        }
+
+        void putString(String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.putInt(bytes.length);
+            for (byte b : bytes)
+            {
+                this.putByte(b);
+            }
+        }
+
+        void flush()
+        {
+            this.buffer.flip();
+            try
+            {
+                while (this.buffer.hasRemaining())
+                {
+                    this.channel.write(this.buffer);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            this.buffer.clear();
+        }
+    }
+
+    /*
+     * Buffered reads from a file channel.
+     */
+    private static class Input
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        Input(FileChannel channel)
+        {
+            this.channel = channel;
+            this.buffer.limit(0);
+        }
+
+        private void ensure(int bytes)
+        {
+            if (this.buffer.remaining() >= bytes)
+            {
+                return;
+            }
+            this.buffer.compact();
+            try
+            {
+                while (this.buffer.position() < bytes)
+                {
+                    if (this.channel.read(this.buffer) < 0)
+                    {
+                        throw new IOException("checkpoint is truncated");
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            this.buffer.flip();
+        }
+
+        byte getByte()
+        {
+            this.ensure(1);
+            return this.buffer.get();
+        }
+
+        int getInt()
+        {
+            this.ensure(4);
+            return this.buffer.getInt();
+        }
+
+        long getLong()
+        {
+            this.ensure(8);
+            return this.buffer.getLong();
+        }
+
+        String getString()
+        {
+            int length = this.getInt();
+            if (length < 0 || length > 4096)
+            {
+                throw new UncheckedIOException(new IOException("checkpoint is corrupt"));
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < bytes.length; ++i)
+            {
+                bytes[i] = this.getByte();
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
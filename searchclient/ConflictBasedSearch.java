@@ -0,0 +1,424 @@
+package searchclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/*
+ * Conflict-Based Search (Sharon et al. 2015) for levels where only agents have
+ * goals (the MAPF levels).
+ *
+ * The high level searches a constraint tree. Every node holds one path per agent,
+ * each planned alone by a time-expanded A* (the low level) that respects the
+ * node's constraints. The first conflict between two paths is resolved by
+ * branching into two children, each forbidding one of the two agents from the
+ * contested cell at the contested time. Nodes are ordered by sum of path costs.
+ *
+ * The hospital domain forbids both two agents ending up in the same cell and an
+ * agent moving into a cell that was occupied at the start of the step (which
+ * includes swaps). Both are resolved with vertex constraints: the follow
+ * conflict "a enters c at t while b was in c at t-1" branches into "a not in c at
+ * t" and "b not in c at t-1".
+ *
+ * Boxes are treated as walls, since the low level only moves agents. A box
+ * without a goal can still block the only way to a goal, so finding no plan
+ * doesn't mean the level is unsolvable, and SearchClient then falls back to A*.
+ */
+public class ConflictBasedSearch
+{
+    private static final int[][] MOVES = {{-1, 0}, {1, 0}, {0, 1}, {0, -1}};
+    private static final Action[] MOVE_ACTIONS = {Action.MoveN, Action.MoveS, Action.MoveE, Action.MoveW};
+
+    // An agent may not be at cell at time. Constraints of a node are linked to
+    // those of its parent, so children share their ancestors' constraints.
+    private static class Constraint
+    {
+        final int agent;
+        final int cell;
+        final int time;
+        final Constraint next;
+
+        Constraint(int agent, int cell, int time, Constraint next)
+        {
+            this.agent = agent;
+            this.cell = cell;
+            this.time = time;
+            this.next = next;
+        }
+    }
+
+    private static class Node
+    {
+        final Constraint constraints;
+        final int[][] paths;
+        final int cost;
+        final int conflicts;
+
+        Node(Constraint constraints, int[][] paths)
+        {
+            this.constraints = constraints;
+            this.paths = paths;
+            int cost = 0;
+            for (int[] path : paths)
+            {
+                cost += path.length - 1;
+            }
+            this.cost = cost;
+            this.conflicts = countConflicts(paths);
+        }
+    }
+
+    // Walls with the boxes added, and per agent the distances to its goal cell
+    private final boolean[][] walls;
+    private final int numCols;
+    private final int[][] distances;
+    private final int[] goalCells;
+
+    private long highLevelNodes = 0;
+    private long lowLevelNodes = 0;
+
+    /*
+     * Returns true if CBS can solve the level: no box has a goal.
+     */
+    public static boolean isApplicable(State initialState)
+    {
+        char[][] goals = initialState.level.goals;
+        for (int row = 0; row < goals.length; row++)
+        {
+            for (int col = 0; col < goals[row].length; col++)
+            {
+                if ('A' <= goals[row][col] && goals[row][col] <= 'Z')
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private ConflictBasedSearch(State initialState)
+    {
+        int numAgents = initialState.agentRows.length;
+
+        // Boxes are static obstacles for the low level
+        Level level = initialState.level;
+        boolean[][] walls = new boolean[level.walls.length][];
+        for (int row = 0; row < walls.length; row++)
+        {
+            walls[row] = Arrays.copyOf(level.walls[row], level.walls[row].length);
+            for (int col = 0; col < walls[row].length; col++)
+            {
+                walls[row][col] |= initialState.boxes[row][col] != 0;
+            }
+        }
+        int numCols = walls[0].length;
+
+        // Distance tables to each agent's goal (none for agents without a goal)
+        int[][] distances = new int[numAgents][];
+        int[] goalCells = new int[numAgents];
+        Arrays.fill(goalCells, -1);
+        for (int row = 0; row < level.goals.length; row++)
+        {
+            for (int col = 0; col < level.goals[row].length; col++)
+            {
+                char goal = level.goals[row][col];
+                if ('0' <= goal && goal <= '9' && goal - '0' < numAgents)
+                {
+                    int agent = goal - '0';
+                    goalCells[agent] = row * numCols + col;
+                    int[][] grid = DistanceGrid.shortestPaths(goal, walls, row, col).distances;
+                    distances[agent] = new int[walls.length * numCols];
+                    for (int r = 0; r < grid.length; r++)
+                    {
+                        System.arraycopy(grid[r], 0, distances[agent], r * numCols, grid[r].length);
+                    }
+                }
+            }
+        }
+
+        this.walls = walls;
+        this.numCols = numCols;
+        this.distances = distances;
+        this.goalCells = goalCells;
+    }
+
+    public static Action[][] search(State initialState)
+    {
+        return new ConflictBasedSearch(initialState).run(initialState);
+    }
+
+    private Action[][] run(State initialState)
+    {
+        long startTime = System.nanoTime();
+        int numAgents = initialState.agentRows.length;
+
+        // Root: every agent on its own
+        int[][] paths = new int[numAgents][];
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            int start = initialState.agentRows[agent] * this.numCols + initialState.agentCols[agent];
+            paths[agent] = this.lowLevel(agent, start, null);
+            if (paths[agent] == null)
+            {
+                return null;
+            }
+        }
+
+        // Ties on cost go to the node with fewer conflicts, which is closer to a solution
+        PriorityQueue<Node> open = new PriorityQueue<>((n1, n2) -> n1.cost != n2.cost ? n1.cost - n2.cost
+                                                                                       : n1.conflicts - n2.conflicts);
+        open.add(new Node(null, paths));
+
+        while (!open.isEmpty())
+        {
+            Node node = open.poll();
+            ++this.highLevelNodes;
+
+            int[] conflict = firstConflict(node.paths);
+            if (conflict == null)
+            {
+                System.err.format("CBS: %,d high-level nodes, %,d low-level nodes, cost %d, time %.3f s\n",
+                                  this.highLevelNodes, this.lowLevelNodes, node.cost,
+                                  (System.nanoTime() - startTime) / 1_000_000_000d);
+                return this.toPlan(node.paths);
+            }
+
+            // conflict = {agent1, cell1, time1, agent2, cell2, time2}
+            for (int i = 0; i < 2; ++i)
+            {
+                int agent = conflict[3 * i];
+                Constraint constraints = new Constraint(agent, conflict[3 * i + 1], conflict[3 * i + 2],
+                                                        node.constraints);
+                int start = node.paths[agent][0];
+                int[] path = this.lowLevel(agent, start, constraints);
+                if (path != null)
+                {
+                    int[][] childPaths = Arrays.copyOf(node.paths, numAgents);
+                    childPaths[agent] = path;
+                    open.add(new Node(constraints, childPaths));
+                }
+            }
+
+            if (this.highLevelNodes % 1000 == 0)
+            {
+                System.err.format("CBS: %,d high-level nodes, %,d low-level nodes, %s\n",
+                                  this.highLevelNodes, this.lowLevelNodes, Memory.stringRep());
+            }
+        }
+
+        return null;
+    }
+
+    private static int at(int[] path, int time)
+    {
+        return path[Math.min(time, path.length - 1)];
+    }
+
+    /*
+     * Finds the earliest conflict between two paths, or null if there is none.
+     */
+    private static int[] firstConflict(int[][] paths)
+    {
+        int length = 0;
+        for (int[] path : paths)
+        {
+            length = Math.max(length, path.length);
+        }
+
+        for (int t = 1; t < length; ++t)
+        {
+            for (int a1 = 0; a1 < paths.length; ++a1)
+            {
+                for (int a2 = a1 + 1; a2 < paths.length; ++a2)
+                {
+                    int c1 = at(paths[a1], t);
+                    int c2 = at(paths[a2], t);
+                    if (c1 == c2)
+                    {
+                        return new int[]{a1, c1, t, a2, c2, t};
+                    }
+                    if (c1 != at(paths[a1], t - 1) && c1 == at(paths[a2], t - 1))
+                    {
+                        return new int[]{a1, c1, t, a2, c1, t - 1};
+                    }
+                    if (c2 != at(paths[a2], t - 1) && c2 == at(paths[a1], t - 1))
+                    {
+                        return new int[]{a2, c2, t, a1, c2, t - 1};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Number of conflicting agent pairs over all time steps.
+     */
+    private static int countConflicts(int[][] paths)
+    {
+        int length = 0;
+        for (int[] path : paths)
+        {
+            length = Math.max(length, path.length);
+        }
+
+        int conflicts = 0;
+        for (int t = 1; t < length; ++t)
+        {
+            for (int a1 = 0; a1 < paths.length; ++a1)
+            {
+                for (int a2 = a1 + 1; a2 < paths.length; ++a2)
+                {
+                    int c1 = at(paths[a1], t);
+                    int c2 = at(paths[a2], t);
+                    if (c1 == c2 || (c1 != at(paths[a1], t - 1) && c1 == at(paths[a2], t - 1)) ||
+                        (c2 != at(paths[a2], t - 1) && c2 == at(paths[a1], t - 1)))
+                    {
+                        ++conflicts;
+                    }
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    private static long key(int cell, int time)
+    {
+        return (long) time << 32 | cell;
+    }
+
+    /*
+     * Time-expanded A* for one agent from start, avoiding the constraints on that
+     * agent. Returns the cells visited at times 0..T, or null if there is no path.
+     *
+     * Past the last constraint time nothing changes with time, so times beyond it
+     * are folded together in the closed set to keep the search finite.
+     */
+    private int[] lowLevel(int agent, int start, Constraint constraints)
+    {
+        HashSet<Long> forbidden = new HashSet<>();
+        int horizon = 0;
+        for (Constraint c = constraints; c != null; c = c.next)
+        {
+            if (c.agent == agent)
+            {
+                forbidden.add(key(c.cell, c.time));
+                horizon = Math.max(horizon, c.time);
+            }
+        }
+        if (forbidden.contains(key(start, 0)))
+        {
+            return null;
+        }
+
+        int[] dist = this.distances[agent];
+        int goal = this.goalCells[agent];
+
+        // Search nodes: {cell, time, f, parent index, own index}
+        ArrayList<int[]> nodes = new ArrayList<>();
+        PriorityQueue<int[]> open = new PriorityQueue<>((n1, n2) -> n1[2] != n2[2] ? n1[2] - n2[2] : n2[1] - n1[1]);
+        HashSet<Long> closed = new HashSet<>();
+
+        int[] root = {start, 0, dist == null ? 0 : dist[start], -1, 0};
+        nodes.add(root);
+        open.add(root);
+
+        while (!open.isEmpty())
+        {
+            int[] node = open.poll();
+            int cell = node[0];
+            int time = node[1];
+            if (!closed.add(key(cell, Math.min(time, horizon + 1))))
+            {
+                continue;
+            }
+            ++this.lowLevelNodes;
+
+            if ((goal < 0 || cell == goal) && time >= lastConstraint(forbidden, cell, time, horizon))
+            {
+                int[] path = new int[time + 1];
+                for (int[] n = node; n != null; n = n[3] < 0 ? null : nodes.get(n[3]))
+                {
+                    path[n[1]] = n[0];
+                }
+                return path;
+            }
+
+            int row = cell / this.numCols;
+            int col = cell % this.numCols;
+            for (int m = 0; m <= MOVES.length; ++m)
+            {
+                int next = cell;
+                if (m < MOVES.length)
+                {
+                    int r = row + MOVES[m][0];
+                    int c = col + MOVES[m][1];
+                    if (r < 0 || r >= this.walls.length || c < 0 || c >= this.numCols || this.walls[r][c])
+                    {
+                        continue;
+                    }
+                    next = r * this.numCols + c;
+                }
+                if (dist != null && dist[next] < 0)
+                {
+                    continue;
+                }
+                if (forbidden.contains(key(next, time + 1)) ||
+                    closed.contains(key(next, Math.min(time + 1, horizon + 1))))
+                {
+                    continue;
+                }
+
+                int[] child = {next, time + 1, time + 1 + (dist == null ? 0 : dist[next]), node[4], nodes.size()};
+                nodes.add(child);
+                open.add(child);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The agent may stop at cell at time only if it is not forbidden to stay there
+     * later. Returns the earliest time from which staying at cell is allowed.
+     */
+    private static int lastConstraint(HashSet<Long> forbidden, int cell, int time, int horizon)
+    {
+        for (int t = horizon; t > time; --t)
+        {
+            if (forbidden.contains(key(cell, t)))
+            {
+                return t + 1;
+            }
+        }
+        return time;
+    }
+
+    private Action[][] toPlan(int[][] paths)
+    {
+        int length = 0;
+        for (int[] path : paths)
+        {
+            length = Math.max(length, path.length - 1);
+        }
+
+        Action[][] plan = new Action[length][paths.length];
+        for (int t = 0; t < length; ++t)
+        {
+            for (int agent = 0; agent < paths.length; ++agent)
+            {
+                int from = at(paths[agent], t);
+                int to = at(paths[agent], t + 1);
+                plan[t][agent] = Action.NoOp;
+                for (int m = 0; m < MOVES.length; ++m)
+                {
+                    if (to - from == MOVES[m][0] * this.numCols + MOVES[m][1])
+                    {
+                        plan[t][agent] = MOVE_ACTIONS[m];
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+}
@@ -1,5 +1,7 @@
 package searchclient;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 public class DistanceGrid
 {
@@ -19,4 +21,41 @@ public class DistanceGrid
         this.goalID = goalID;
         this.distances = distances;
     }
-}
\ No newline at end of file
+
+    /*
+     * Builds the grid of true shortest-path distances to (goalRow, goalCol), found
+     * by breadth-first search around the given walls. Walls and cells that cannot
+     * reach the goal get -1.
+     */
+    public static DistanceGrid shortestPaths(char goalID, boolean[][] walls, int goalRow, int goalCol)
+    {
+        int[][] distances = new int[walls.length][];
+        for (int row = 0; row < walls.length; row++)
+        {
+            distances[row] = new int[walls[row].length];
+            Arrays.fill(distances[row], -1);
+        }
+
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        distances[goalRow][goalCol] = 0;
+        queue.add(new int[]{goalRow, goalCol});
+        int[][] deltas = {{-1, 0}, {1, 0}, {0, 1}, {0, -1}};
+        while (!queue.isEmpty())
+        {
+            int[] cell = queue.poll();
+            for (int[] delta : deltas)
+            {
+                int row = cell[0] + delta[0];
+                int col = cell[1] + delta[1];
+                if (row >= 0 && row < walls.length && col >= 0 && col < walls[row].length &&
+                    !walls[row][col] && distances[row][col] < 0)
+                {
+                    distances[row][col] = distances[cell[0]][cell[1]] + 1;
+                    queue.add(new int[]{row, col});
+                }
+            }
+        }
+
+        return new DistanceGrid(goalID, distances);
+    }
+}
@@ -0,0 +1,496 @@
+package searchclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/*
+ * External-memory breadth-first search (-extbfs) for levels whose frontier does
+ * not fit in the heap.
+ *
+ * The search runs one BFS layer at a time. Every layer is a file of compactly
+ * encoded states (see StateCodec), sorted and free of duplicates. A layer is
+ * expanded by streaming it through memory-mapped segments; the children are
+ * collected in a fixed-size window in the heap, and every time the window is
+ * full it is sorted and written out as a run file. When the layer is done, the
+ * runs are merged into the next layer file, dropping duplicates and every state
+ * that is also in the current or previous layer (delayed duplicate detection).
+ *
+ * Checking only the last two layers is enough because every joint action can be
+ * undone (see Action.reverse): a state generated again at depth d + 1 was first
+ * reached at depth d - 1, d or d + 1.
+ *
+ * The plan is rebuilt backwards from the goal: the predecessors of the current
+ * state are generated (State.getPredecessorStates) and one of them is looked up
+ * by binary search in the layer file before it.
+ */
+public class ExternalBFS
+{
+    // Directory for the layer and run files, and the window size in states
+    public static File directory = new File(System.getProperty("java.io.tmpdir"));
+    public static int windowStates = 1 << 20;
+
+    // Largest segment of a file mapped at once
+    private static final long SEGMENT_BYTES = 1L << 28;
+
+    private final StateCodec codec;
+    private final File workDirectory;
+
+    private ExternalBFS(State initialState, File workDirectory)
+    {
+        this.codec = new StateCodec(initialState);
+        this.workDirectory = workDirectory;
+    }
+
+    public static Action[][] search(State initialState)
+    {
+        // Parent pointers, agent numbers and single full states are assumed below,
+        // and a state's layer is its depth, which tunnel macros would skip past
+        SearchContext context = initialState.context.copy();
+        context.operatorDecomposition = false;
+        context.symmetryReduction = false;
+        context.tunnelMacros = false;
+        initialState = initialState.withContext(context);
+
+        File workDirectory = null;
+        try
+        {
+            directory.mkdirs();
+            workDirectory = Files.createTempDirectory(directory.toPath(), "searchclient-bfs-").toFile();
+            return new ExternalBFS(initialState, workDirectory).run(initialState);
+        }
+        catch (IOException e)
+        {
+            System.err.println("External BFS failed: " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            File[] files = workDirectory == null ? null : workDirectory.listFiles();
+            for (File file : files == null ? new File[0] : files)
+            {
+                if (!file.delete())
+                {
+                    System.err.println("Could not delete " + file + ".");
+                }
+            }
+            if (workDirectory != null && !workDirectory.delete())
+            {
+                System.err.println("Could not delete " + workDirectory + ".");
+            }
+        }
+    }
+
+    private Action[][] run(State initialState)
+    throws IOException
+    {
+        long startTime = System.nanoTime();
+        int words = this.codec.words;
+        System.err.format("External BFS: %d words per state, window of %,d states in %s.\n", words, windowStates,
+                          this.workDirectory);
+
+        if (initialState.isGoalState())
+        {
+            return new Action[0][];
+        }
+
+        long[] record = new long[words];
+        this.codec.encode(initialState, record, 0);
+        try (RecordWriter writer = new RecordWriter(this.layerFile(0)))
+        {
+            writer.write(record, 0);
+        }
+
+        long generated = 1;
+        for (int depth = 0; ; depth++)
+        {
+            // Expand the layer into sorted runs
+            ArrayList<File> runs = new ArrayList<>();
+            long[] window = new long[windowStates * words];
+            int windowSize = 0;
+            State goal = null;
+            try (RecordReader layer = new RecordReader(this.layerFile(depth)))
+            {
+                while (goal == null && layer.next(record))
+                {
+                    for (State child : this.codec.decode(record, 0).getExpandedStates())
+                    {
+                        if (child.isGoalState())
+                        {
+                            goal = child;
+                            break;
+                        }
+                        this.codec.encode(child, window, windowSize * words);
+                        if (++windowSize == windowStates)
+                        {
+                            runs.add(this.writeRun(window, windowSize, runs.size()));
+                            windowSize = 0;
+                        }
+                    }
+                }
+            }
+
+            if (goal != null)
+            {
+                System.err.format("External BFS: goal found at depth %d after %,d states, %.3f s.\n", depth + 1,
+                                  generated, (System.nanoTime() - startTime) / 1_000_000_000d);
+                return this.extractPlan(goal, depth + 1);
+            }
+
+            if (windowSize > 0)
+            {
+                runs.add(this.writeRun(window, windowSize, runs.size()));
+            }
+            window = null;
+
+            // Merge the runs into the next layer, minus the last two layers
+            long layerSize = this.merge(runs, depth);
+            for (File run : runs)
+            {
+                run.delete();
+            }
+
+            generated += layerSize;
+            System.err.format("External BFS: depth %d, %,d new states, %,d total, %d runs, %.3f s\n%s\n", depth + 1,
+                              layerSize, generated, runs.size(), (System.nanoTime() - startTime) / 1_000_000_000d,
+                              Memory.stringRep());
+            if (layerSize == 0)
+            {
+                return null;
+            }
+        }
+    }
+
+    private File layerFile(int depth)
+    {
+        return new File(this.workDirectory, "layer-" + depth + ".bin");
+    }
+
+    /*
+     * Sorts the window and writes it without duplicates as a run file.
+     */
+    private File writeRun(long[] window, int size, int number)
+    throws IOException
+    {
+        int words = this.codec.words;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            order[i] = i * words;
+        }
+        this.sort(order, new int[size], window);
+
+        File file = new File(this.workDirectory, "run-" + number + ".bin");
+        try (RecordWriter writer = new RecordWriter(file))
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (i == 0 || this.codec.compare(window, order[i - 1], window, order[i]) != 0)
+                {
+                    writer.write(window, order[i]);
+                }
+            }
+        }
+        return file;
+    }
+
+    /*
+     * Bottom-up merge sort of the record offsets in order by their encodings.
+     */
+    private void sort(int[] order, int[] buffer, long[] records)
+    {
+        int n = order.length;
+        for (int width = 1; width < n; width *= 2)
+        {
+            for (int lo = 0; lo < n - width; lo += 2 * width)
+            {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi)
+                {
+                    boolean first = this.codec.compare(records, order[i], records, order[j]) <= 0;
+                    buffer[k++] = first ? order[i++] : order[j++];
+                }
+                while (i < mid)
+                {
+                    buffer[k++] = order[i++];
+                }
+                while (j < hi)
+                {
+                    buffer[k++] = order[j++];
+                }
+                System.arraycopy(buffer, lo, order, lo, hi - lo);
+            }
+        }
+    }
+
+    /*
+     * Merges the sorted runs into layer depth + 1. States that are in layer depth
+     * or depth - 1 are dropped. Returns the number of states written.
+     */
+    private long merge(ArrayList<File> runs, int depth)
+    throws IOException
+    {
+        int words = this.codec.words;
+        PriorityQueue<RecordReader> queue = new PriorityQueue<>(
+                (r1, r2) -> this.codec.compare(r1.current, 0, r2.current, 0));
+        ArrayList<RecordReader> readers = new ArrayList<>();
+        long written = 0;
+        try (RecordWriter writer = new RecordWriter(this.layerFile(depth + 1));
+             RecordReader current = new RecordReader(this.layerFile(depth));
+             RecordReader previous = new RecordReader(depth > 0 ? this.layerFile(depth - 1) : null))
+        {
+            for (File run : runs)
+            {
+                RecordReader reader = new RecordReader(run);
+                readers.add(reader);
+                if (reader.next(reader.current))
+                {
+                    queue.add(reader);
+                }
+            }
+            boolean moreCurrent = current.next(current.current);
+            boolean morePrevious = previous.next(previous.current);
+
+            long[] last = null;
+            while (!queue.isEmpty())
+            {
+                RecordReader reader = queue.poll();
+                long[] record = reader.current.clone();
+                if (reader.next(reader.current))
+                {
+                    queue.add(reader);
+                }
+                if (last != null && this.codec.compare(last, 0, record, 0) == 0)
+                {
+                    continue;
+                }
+                last = record;
+
+                while (moreCurrent && this.codec.compare(current.current, 0, record, 0) < 0)
+                {
+                    moreCurrent = current.next(current.current);
+                }
+                while (morePrevious && this.codec.compare(previous.current, 0, record, 0) < 0)
+                {
+                    morePrevious = previous.next(previous.current);
+                }
+                if ((moreCurrent && this.codec.compare(current.current, 0, record, 0) == 0) ||
+                    (morePrevious && this.codec.compare(previous.current, 0, record, 0) == 0))
+                {
+                    continue;
+                }
+
+                writer.write(record, 0);
+                ++written;
+            }
+        }
+        finally
+        {
+            for (RecordReader reader : readers)
+            {
+                reader.close();
+            }
+        }
+        return written;
+    }
+
+    /*
+     * Walks back from the goal at the given depth, finding a predecessor of the
+     * current state in each earlier layer.
+     */
+    private Action[][] extractPlan(State goal, int depth)
+    throws IOException
+    {
+        Action[][] plan = new Action[depth][];
+        long[] key = new long[this.codec.words];
+        State state = goal;
+        for (int d = depth - 1; d >= 0; d--)
+        {
+            State found = null;
+            try (RecordReader layer = new RecordReader(this.layerFile(d)))
+            {
+                for (State predecessor : state.getPredecessorStates())
+                {
+                    this.codec.encode(predecessor, key, 0);
+                    if (layer.contains(key))
+                    {
+                        found = predecessor;
+                        break;
+                    }
+                }
+            }
+            if (found == null)
+            {
+                System.err.println("External BFS: no predecessor found in layer " + d + ".");
+                return null;
+            }
+
+            Action[] jointAction = new Action[found.jointAction.length];
+            for (int agent = 0; agent < jointAction.length; agent++)
+            {
+                jointAction[agent] = found.jointAction[agent].reverse();
+            }
+            plan[d] = jointAction;
+            state = this.codec.decode(key, 0);
+        }
+        return plan;
+    }
+
+    /*
+     * Sequential writer of records through a small direct buffer.
+     */
+    private class RecordWriter
+            implements AutoCloseable
+    {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        RecordWriter(File file)
+        throws IOException
+        {
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.setLength(0);
+            this.channel = this.file.getChannel();
+        }
+
+        void write(long[] records, int offset)
+        throws IOException
+        {
+            if (this.buffer.remaining() < codec.words * 8)
+            {
+                this.flush();
+            }
+            for (int i = 0; i < codec.words; i++)
+            {
+                this.buffer.putLong(records[offset + i]);
+            }
+        }
+
+        private void flush()
+        throws IOException
+        {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining())
+            {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+
+        @Override
+        public void close()
+        throws IOException
+        {
+            this.flush();
+            this.file.close();
+        }
+    }
+
+    /*
+     * Reader of a record file through memory-mapped segments, for sequential
+     * reading and binary search. A null file reads as empty.
+     */
+    private class RecordReader
+            implements AutoCloseable
+    {
+        final long[] current = new long[codec.words];
+
+        private final RandomAccessFile file;
+        private final long records;
+        private final long recordsPerSegment;
+        private final MappedByteBuffer[] segments;
+        private long position = 0;
+
+        RecordReader(File file)
+        throws IOException
+        {
+            int recordBytes = codec.words * 8;
+            this.recordsPerSegment = SEGMENT_BYTES / recordBytes;
+            if (file == null)
+            {
+                this.file = null;
+                this.records = 0;
+                this.segments = new MappedByteBuffer[0];
+                return;
+            }
+
+            this.file = new RandomAccessFile(file, "r");
+            this.records = this.file.length() / recordBytes;
+            this.segments = new MappedByteBuffer[(int) ((this.records + this.recordsPerSegment - 1) /
+                                                        this.recordsPerSegment)];
+            for (int i = 0; i < this.segments.length; i++)
+            {
+                long start = i * this.recordsPerSegment * recordBytes;
+                long length = Math.min(this.recordsPerSegment, this.records - i * this.recordsPerSegment) * recordBytes;
+                this.segments[i] = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        }
+
+        private void read(long index, long[] out)
+        {
+            MappedByteBuffer segment = this.segments[(int) (index / this.recordsPerSegment)];
+            int offset = (int) (index % this.recordsPerSegment) * codec.words * 8;
+            for (int i = 0; i < codec.words; i++)
+            {
+                out[i] = segment.getLong(offset + i * 8);
+            }
+        }
+
+        boolean next(long[] out)
+        {
+            if (this.position >= this.records)
+            {
+                return false;
+            }
+            this.read(this.position++, out);
+            return true;
+        }
+
+        boolean contains(long[] key)
+        {
+            long[] probe = new long[codec.words];
+            long lo = 0;
+            long hi = this.records - 1;
+            while (lo <= hi)
+            {
+                long mid = (lo + hi) >>> 1;
+                this.read(mid, probe);
+                int c = codec.compare(probe, 0, key, 0);
+                if (c == 0)
+                {
+                    return true;
+                }
+                if (c < 0)
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid - 1;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close()
+        throws IOException
+        {
+            if (this.file != null)
+            {
+                this.file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package searchclient;
+
+import java.util.function.LongConsumer;
+
+/*
+ * Open-addressing hash set of 64-bit state fingerprints. Used as a compact
+ * replacement for a HashSet<State> closed set: each entry costs 8 bytes (plus
+ * slack) instead of a HashMap node and the full State it keeps reachable.
+ *
+ * Two distinct states sharing a fingerprint would be wrongly treated as
+ * duplicates. With 64-bit fingerprints this is negligible for the state counts
+ * that fit in memory.
+ */
+public class FingerprintSet
+{
+    // 0 marks an empty slot, so a fingerprint of 0 is stored as EMPTY_REPLACEMENT.
+    private static final long EMPTY_REPLACEMENT = 0x9E3779B97F4A7C15L;
+
+    private long[] table;
+    private int size = 0;
+
+    public FingerprintSet()
+    {
+        this(1 << 16);
+    }
+
+    public FingerprintSet(int expected)
+    {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        this.table = new long[capacity];
+    }
+
+    /*
+     * Adds the fingerprint. Returns true if it was not already present.
+     */
+    public boolean add(long fingerprint)
+    {
+        if (fingerprint == 0)
+        {
+            fingerprint = EMPTY_REPLACEMENT;
+        }
+        if ((this.size + 1) * 4L > this.table.length * 3L)
+        {
+            this.grow();
+        }
+
+        int mask = this.table.length - 1;
+        int i = mix(fingerprint) & mask;
+        while (this.table[i] != 0)
+        {
+            if (this.table[i] == fingerprint)
+            {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        this.table[i] = fingerprint;
+        this.size++;
+        return true;
+    }
+
+    public boolean contains(long fingerprint)
+    {
+        if (fingerprint == 0)
+        {
+            fingerprint = EMPTY_REPLACEMENT;
+        }
+
+        int mask = this.table.length - 1;
+        int i = mix(fingerprint) & mask;
+        while (this.table[i] != 0)
+        {
+            if (this.table[i] == fingerprint)
+            {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public void forEach(LongConsumer action)
+    {
+        for (long fingerprint : this.table)
+        {
+            if (fingerprint != 0)
+            {
+                action.accept(fingerprint);
+            }
+        }
+    }
+
+    private void grow()
+    {
+        long[] old = this.table;
+        this.table = new long[old.length * 2];
+        int mask = this.table.length - 1;
+        for (long fingerprint : old)
+        {
+            if (fingerprint != 0)
+            {
+                int i = mix(fingerprint) & mask;
+                while (this.table[i] != 0)
+                {
+                    i = (i + 1) & mask;
+                }
+                this.table[i] = fingerprint;
+            }
+        }
+    }
+
+    private static int mix(long fingerprint)
+    {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+}
@@ -1,6 +1,7 @@
 package searchclient;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Stack;
 import java.util.HashSet;
 import java.util.PriorityQueue;
@@ -112,7 +113,7 @@ class FrontierBestFirst
         implements Frontier
 {
     private Heuristic heuristic;
-    private final PriorityQueue<State> pq;
+    private PriorityQueue<State> pq;
     private final HashSet<State> set = new HashSet<>(65536);
 
     public FrontierBestFirst(Heuristic h)
@@ -122,6 +123,38 @@ class FrontierBestFirst
         pq = new PriorityQueue<State>(size, heuristic);
     }
 
+    /*
+     * Takes over the states of another frontier, which is emptied. The queue is
+     * sized for all of them up front, and the other frontier lets go of each
+     * state as it is moved.
+     */
+    public FrontierBestFirst(Heuristic h, Frontier other)
+    {
+        this.heuristic = h;
+        this.pq = new PriorityQueue<State>(Math.max(1, other.size()), h);
+        while (!other.isEmpty())
+        {
+            this.add(other.pop());
+        }
+    }
+
+    /*
+     * Orders the queued states by h from now on. The set of queued states is
+     * kept, so only the queue's array is built anew.
+     */
+    public void reorder(Heuristic h)
+    {
+        PriorityQueue<State> pq = new PriorityQueue<State>(Math.max(1, this.pq.size()), h);
+        pq.addAll(this.pq);
+        this.heuristic = h;
+        this.pq = pq;
+    }
+
+    public Heuristic getHeuristic()
+    {
+        return this.heuristic;
+    }
+
     @Override
     public void add(State state)
     {
@@ -161,3 +194,343 @@ class FrontierBestFirst
         return String.format("best-first search using %s", this.heuristic.toString());
     }
 }
+
+/*
+ * A queued state with its priority. Equal priorities are popped in the order
+ * the states were queued.
+ */
+class FrontierEntry
+        implements Comparable<FrontierEntry>
+{
+    final State state;
+    final int priority;
+    final long sequence;
+
+    FrontierEntry(State state, int priority, long sequence)
+    {
+        this.state = state;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(FrontierEntry other)
+    {
+        return this.priority != other.priority ? Integer.compare(this.priority, other.priority)
+                                               : Long.compare(this.sequence, other.sequence);
+    }
+}
+
+/*
+ * Best-first frontier with deferred evaluation: a state is queued with the
+ * priority given by its parent's heuristic value and only evaluated itself when
+ * it is popped. Most generated states of greedy and high weight searches are
+ * never expanded, so most evaluations are saved, at the cost of a coarser order
+ * (all children of a state share a priority, ties are popped in FIFO order).
+ *
+ * With preferred operators, children reached by a helpful action (one bringing
+ * an agent or a box closer to a goal, see Heuristic.isHelpful) are queued in a
+ * second, preferred queue as well. Pops alternate between the queues, and every
+ * time a popped state improves on the best heuristic value so far the preferred
+ * queue is boosted to get the next BOOST pops. A state is in the frontier until
+ * it is popped from either queue; its entry in the other queue is then skipped.
+ */
+class FrontierDeferred
+        implements Frontier
+{
+    private static final int BOOST = 1000;
+
+    private final Heuristic heuristic;
+    private final boolean preferredOperators;
+    private final PriorityQueue<FrontierEntry> queue = new PriorityQueue<>(65536);
+    private final PriorityQueue<FrontierEntry> preferred = new PriorityQueue<>();
+    private final HashSet<State> set = new HashSet<>(65536);
+
+    // The state being expanded, the parent of the states added until the next pop
+    private State expanding = null;
+    private long sequence = 0;
+    private int queuePriority = 0;
+    private int preferredPriority = 0;
+    private int bestH = Integer.MAX_VALUE;
+
+    public FrontierDeferred(Heuristic h, boolean preferredOperators)
+    {
+        this.heuristic = h;
+        this.preferredOperators = preferredOperators;
+    }
+
+    public Heuristic getHeuristic()
+    {
+        return this.heuristic;
+    }
+
+    @Override
+    public void add(State state)
+    {
+        // States without a parent pointer (trail store) are children of the
+        // state being expanded; the root is evaluated right away.
+        State parent = state.parent != null ? state.parent : this.expanding;
+        int h = this.heuristic.h(parent != null ? parent : state);
+        FrontierEntry entry = new FrontierEntry(state, this.heuristic.f(state, h), this.sequence++);
+        this.queue.add(entry);
+        if (this.preferredOperators && parent != null && state.jointAction != null &&
+            this.heuristic.isHelpful(parent, state))
+        {
+            this.preferred.add(entry);
+        }
+        this.set.add(state);
+    }
+
+    @Override
+    public State pop()
+    {
+        State state;
+        do
+        {
+            PriorityQueue<FrontierEntry> next = this.queue;
+            if (!this.preferred.isEmpty() && (this.queue.isEmpty() || this.preferredPriority < this.queuePriority))
+            {
+                next = this.preferred;
+                ++this.preferredPriority;
+            }
+            else
+            {
+                ++this.queuePriority;
+            }
+            state = next.poll().state;
+        }
+        while (!this.set.remove(state));
+
+        int h = this.heuristic.h(state);
+        if (h < this.bestH)
+        {
+            this.bestH = h;
+            if (this.preferredOperators)
+            {
+                this.preferredPriority -= BOOST;
+            }
+        }
+        this.expanding = state;
+        return state;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.set.isEmpty();
+    }
+
+    @Override
+    public int size()
+    {
+        return this.set.size();
+    }
+
+    @Override
+    public boolean contains(State state)
+    {
+        return this.set.contains(state);
+    }
+
+    @Override
+    public String getName()
+    {
+        return String.format("deferred best-first search using %s%s", this.heuristic.toString(),
+                             this.preferredOperators ? " and preferred operators" : "");
+    }
+}
+
+/*
+ * Greedy best-first frontier with one queue per heuristic. Every state is
+ * evaluated by all heuristics and queued in every queue; pops take turns between
+ * the queues, and a queue that pops a state better than any it popped before is
+ * boosted to get the next BOOST pops. Progress of any one heuristic is thereby
+ * followed up quickly, while the other queues still get their turns. A state is
+ * in the frontier until it is popped from one queue; its entries in the other
+ * queues are then skipped.
+ *
+ * Priorities are kept in the queue entries, since a state caches the value of
+ * one heuristic only (see State.hOwner). That is the last heuristic in the list,
+ * so only it is evaluated incrementally from the parent; the others sum over all
+ * agents and boxes for every state.
+ */
+class FrontierAlternating
+        implements Frontier
+{
+    private static final int BOOST = 1000;
+
+    private final Heuristic[] heuristics;
+    private final PriorityQueue<FrontierEntry>[] queues;
+    private final int[] priorities;
+    private final int[] bestH;
+    private final HashSet<State> set = new HashSet<>(65536);
+    private long sequence = 0;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public FrontierAlternating(Heuristic[] heuristics)
+    {
+        this.heuristics = heuristics;
+        this.queues = new PriorityQueue[heuristics.length];
+        for (int i = 0; i < heuristics.length; i++)
+        {
+            this.queues[i] = new PriorityQueue<>(65536);
+        }
+        this.priorities = new int[heuristics.length];
+        this.bestH = new int[heuristics.length];
+        Arrays.fill(this.bestH, Integer.MAX_VALUE);
+    }
+
+    public Heuristic[] getHeuristics()
+    {
+        return this.heuristics;
+    }
+
+    @Override
+    public void add(State state)
+    {
+        for (int i = 0; i < this.heuristics.length; i++)
+        {
+            this.queues[i].add(new FrontierEntry(state, this.heuristics[i].f(state), this.sequence));
+        }
+        ++this.sequence;
+        this.set.add(state);
+    }
+
+    @Override
+    public State pop()
+    {
+        while (true)
+        {
+            // The non-empty queue with the fewest turns so far
+            int next = -1;
+            for (int i = 0; i < this.queues.length; i++)
+            {
+                if (!this.queues[i].isEmpty() && (next < 0 || this.priorities[i] < this.priorities[next]))
+                {
+                    next = i;
+                }
+            }
+            ++this.priorities[next];
+
+            FrontierEntry entry = this.queues[next].poll();
+            if (this.set.remove(entry.state))
+            {
+                if (entry.priority < this.bestH[next])
+                {
+                    // The first pop sets the bar, later ones improve on it
+                    if (this.bestH[next] != Integer.MAX_VALUE)
+                    {
+                        this.priorities[next] -= BOOST;
+                    }
+                    this.bestH[next] = entry.priority;
+                }
+                return entry.state;
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.set.isEmpty();
+    }
+
+    @Override
+    public int size()
+    {
+        return this.set.size();
+    }
+
+    @Override
+    public boolean contains(State state)
+    {
+        return this.set.contains(state);
+    }
+
+    @Override
+    public String getName()
+    {
+        StringBuilder name = new StringBuilder("alternating best-first search using");
+        for (int i = 0; i < this.heuristics.length; i++)
+        {
+            name.append(i == 0 ? " " : ", ").append(this.heuristics[i].getChoice());
+        }
+        return name.toString();
+    }
+}
+
+/*
+ * Best-first width search: states are ordered by their novelty (see
+ * NoveltyTable), then by their number of unsatisfied goals, then FIFO. Novelty is
+ * measured only against the states generated with the same number of
+ * unsatisfied goals, so every goal achieved opens up the whole level again.
+ * Unlike IW nothing is pruned, states that are not novel are just popped last.
+ *
+ * The pair tables of all goal counts share one budget; once it is used up,
+ * the goal counts reached after that get a table of width 1.
+ */
+class FrontierWidth
+        implements Frontier
+{
+    // Pair tables of all goal counts together
+    private static final long MAX_PAIR_BYTES = 64L << 20;
+
+    private final State initialState;
+    private final NoveltyTable[] partitions;
+    private long pairBytes = 0;
+    private final PriorityQueue<FrontierEntry> queue = new PriorityQueue<>(65536);
+    private final HashSet<State> set = new HashSet<>(65536);
+    private long sequence = 0;
+
+    public FrontierWidth(State initialState)
+    {
+        this.initialState = initialState;
+        this.partitions = new NoveltyTable[initialState.level.numGoals + 1];
+    }
+
+    @Override
+    public void add(State state)
+    {
+        int goals = state.getGoalCount();
+        if (this.partitions[goals] == null)
+        {
+            this.partitions[goals] = new NoveltyTable(this.initialState, 2, MAX_PAIR_BYTES - this.pairBytes);
+            this.pairBytes += this.partitions[goals].pairBytes();
+        }
+        int novelty = this.partitions[goals].novelty(state);
+        this.queue.add(new FrontierEntry(state, novelty * this.partitions.length + goals, this.sequence++));
+        this.set.add(state);
+    }
+
+    @Override
+    public State pop()
+    {
+        State state = this.queue.poll().state;
+        this.set.remove(state);
+        return state;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.queue.isEmpty();
+    }
+
+    @Override
+    public int size()
+    {
+        return this.queue.size();
+    }
+
+    @Override
+    public boolean contains(State state)
+    {
+        return this.set.contains(state);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "best-first width search";
+    }
+}
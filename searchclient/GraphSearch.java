@@ -11,10 +11,39 @@ public class GraphSearch {
     public static Action[][] search(State initialState, Frontier frontier)
     {
         int iterations = 0;
-
-        frontier.add(initialState);
         HashSet<State> expandedNodes = new HashSet<>();
 
+        /*
+         * Lean-mode state. When the memory monitor reports the soft watermark, the
+         * closed set is compressed to fingerprints (compactNodes replaces
+         * expandedNodes) and new states record their ancestry in the compact trail
+         * store instead of keeping parent pointers. At the hard watermark the search
+         * also switches to greedy best-first, which typically reaches a goal with
+         * far fewer nodes. Only rises above the level at the start count, as an
+         * earlier search in the process may not have been collected yet.
+         */
+        FingerprintSet compactNodes = null;
+        MemoryMonitor.start();
+        MemoryMonitor.Pressure pressure = MemoryMonitor.pressure();
+
+        // Checkpoints need the ancestry of every state in the trail store. A
+        // resumed search continues with the snapshot's frontier and closed set.
+        if (Checkpoint.isEnabled() && initialState.context.trail == null) {
+            initialState.context.trail = new TrailStore(initialState.agentRows.length);
+        }
+        Checkpoint.Snapshot snapshot = Checkpoint.resume ? Checkpoint.load(frontier, initialState) : null;
+        if (snapshot != null) {
+            compactNodes = snapshot.closed;
+            expandedNodes = null;
+            iterations = snapshot.iterations;
+        }
+        else {
+            frontier.add(initialState);
+        }
+
+        // Successors are added best first by the ordering policy, if any
+        SuccessorOrder order = SuccessorOrder.create(initialState, heuristicOf(frontier));
+
         //System.err.println("Initial node:\n" + initialState.toString());
 
         while (true) {
@@ -24,42 +53,106 @@ public class GraphSearch {
                 return null;
             }
 
+            // React to heap pressure reported by the background monitor. A drop
+            // is only noted, so that the next rise is seen as one.
+            if (MemoryMonitor.pressure().compareTo(pressure) < 0) {
+                pressure = MemoryMonitor.pressure();
+            }
+            if (MemoryMonitor.pressure().compareTo(pressure) > 0) {
+                pressure = MemoryMonitor.pressure();
+
+                if (compactNodes == null) {
+                    System.err.format("Compressing closed set of %,d states to fingerprints.\n", expandedNodes.size());
+                    compactNodes = new FingerprintSet(expandedNodes.size() * 2);
+                    for (State s : expandedNodes) {
+                        compactNodes.add(s.fingerprint());
+                    }
+                    expandedNodes = new HashSet<>();
+                }
+
+                if (initialState.context.trail == null) {
+                    System.err.println("Recording new states in the compact trail store.");
+                    initialState.context.trail = new TrailStore(initialState.agentRows.length);
+                }
+
+                // Memory is short, so a best-first frontier is reordered in place and
+                // any other hands its states over one at a time
+                if (pressure == MemoryMonitor.Pressure.Hard && !isGreedy(frontier)) {
+                    System.err.format("Switching from %s to greedy best-first search.\n", frontier.getName());
+                    if (frontier instanceof FrontierBestFirst) {
+                        ((FrontierBestFirst) frontier).reorder(new HeuristicGreedy(initialState));
+                    }
+                    else {
+                        frontier = new FrontierBestFirst(new HeuristicGreedy(initialState), frontier);
+                    }
+                }
+            }
+
+            if (iterations % 10000 == 0 && Checkpoint.isDue()) {
+                Checkpoint.save(frontier, expandedNodes, compactNodes, iterations, initialState);
+            }
+
             // Pick a node from the frontier
             // Remove that node from the frontier (pop)
             State n = frontier.pop();
+            int explored = compactNodes == null ? expandedNodes.size() : compactNodes.size();
 
             //Print a status message every 10000 iteration
             if (++iterations % 10000 == 0) {
-                printSearchStatusWithState(expandedNodes, frontier, n);
+                printSearchStatusWithState(explored, frontier, n);
             }
             // Print search status at the beginning of every search
             else if (iterations == 1) {
                 System.err.println("----------- INITIAL STATUS -----------");
-                printSearchStatusWithState(expandedNodes, frontier, n);
+                printSearchStatusWithState(explored, frontier, n);
                 System.err.println("-------------------------------------");
             }
- 
+
             // Check if that node is the goal state. If true, return a the actions needed to reach that state.
             // If false, add that node to explored nodes
             if (n.isGoalState()) {
-                printSearchStatusWithState(expandedNodes, frontier, n);
+                printSearchStatusWithState(explored, frontier, n);
 
                 // Print final status
                 System.err.println("----------- FINAL STATUS -----------");
-                printSearchStatus(expandedNodes, frontier);
+                printSearchStatus(explored, frontier);
+                for (Heuristic heuristic : heuristicsOf(frontier)) {
+                    System.err.format("Heuristic evaluations (%s): %,d\n", heuristic.getChoice(),
+                                      heuristic.evaluations);
+                }
                 System.err.println(n);
                 System.err.println("-------------------------------------");
 
                 return n.extractPlan();
             }
 
-            expandedNodes.add(n);
-            
+            // Only full states are stored, see State.isIntermediate
+            if (!n.isIntermediate()) {
+                if (compactNodes == null) {
+                    expandedNodes.add(n);
+                }
+                else {
+                    compactNodes.add(n.fingerprint());
+                }
+            }
+
             // Expand that node (n): For every child node of n, if the child is
             // not already in the frontier and is not in explored nodes, add it
             // to the frontier.
-            for (State m : n.getExpandedStates()) {
-                if (!frontier.contains(m) && !expandedNodes.contains(m)) {
+            ArrayList<State> children = n.getExpandedStates();
+            if (order != null) {
+                order.order(n, children);
+            }
+            for (int i = 0; i < children.size(); i++) {
+                // A stack pops the last child first
+                State m = children.get(frontier instanceof FrontierDFS ? children.size() - 1 - i : i);
+                if (m.isIntermediate()) {
+                    frontier.add(m);
+                    continue;
+                }
+                boolean seen = compactNodes == null ? expandedNodes.contains(m)
+                                                    : compactNodes.contains(m.fingerprint());
+                if (!frontier.contains(m) && !seen) {
                     frontier.add(m);
                 }
             }
@@ -68,27 +161,55 @@ public class GraphSearch {
 
     }
 
+    private static boolean isGreedy(Frontier frontier)
+    {
+        return heuristicOf(frontier) instanceof HeuristicGreedy;
+    }
+
+    // The (first) heuristic ordering a best-first frontier, or null
+    private static Heuristic heuristicOf(Frontier frontier)
+    {
+        Heuristic[] heuristics = heuristicsOf(frontier);
+        return heuristics.length > 0 ? heuristics[0] : null;
+    }
+
+    private static Heuristic[] heuristicsOf(Frontier frontier)
+    {
+        if (frontier instanceof FrontierBestFirst) {
+            return new Heuristic[]{((FrontierBestFirst) frontier).getHeuristic()};
+        }
+        if (frontier instanceof FrontierDeferred) {
+            return new Heuristic[]{((FrontierDeferred) frontier).getHeuristic()};
+        }
+        if (frontier instanceof FrontierAlternating) {
+            return ((FrontierAlternating) frontier).getHeuristics();
+        }
+        return new Heuristic[0];
+    }
+
     private static long startTime = System.nanoTime();
 
-    private static void printSearchStatus(HashSet<State> explored, Frontier frontier)
+    private static void printSearchStatus(int explored, Frontier frontier)
     {
         String statusTemplate = "#Expanded: %,8d, #Frontier: %,8d, #Generated: %,8d, Time: %3.3f s\n%s\n";
         double elapsedTime = (System.nanoTime() - startTime) / 1_000_000_000d;
-        System.err.format(statusTemplate, explored.size(), frontier.size(), explored.size() + frontier.size(),
+        System.err.format(statusTemplate, explored, frontier.size(), explored + frontier.size(),
                           elapsedTime, Memory.stringRep());
     }
 
-    private static void printSearchStatusWithState(HashSet<State> explored, Frontier frontier, State currentState)
+    private static void printSearchStatusWithState(int explored, Frontier frontier, State currentState)
     {
         printSearchStatus(explored, frontier);
 
-        if (Heuristic.heuristicChoice.equals("goalCount")) {
-            // Print goal count status
-            System.err.println("Current goal count: " + currentState.getGoalCount());
-        }
-        else {
-            // Print current Manhattan distances:
-            System.err.println("Snapshot of Manhattan distances:\n" + Heuristic.getStatusUpdate());
+        for (Heuristic heuristic : heuristicsOf(frontier)) {
+            if (heuristic.getChoice().equals("goalCount")) {
+                // Print goal count status
+                System.err.println("Current goal count: " + currentState.getGoalCount());
+            }
+            else {
+                // Print current Manhattan distances:
+                System.err.println("Snapshot of Manhattan distances:\n" + heuristic.statusUpdate(currentState));
+            }
         }
 
     }
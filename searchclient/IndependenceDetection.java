@@ -0,0 +1,424 @@
+package searchclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Independence detection planner for multi-agent levels.
+ *
+ * Agents are split into groups that are planned separately with the regular
+ * single-search engine (GraphSearch), each group seeing only its own agents and
+ * the boxes of their colors. The group plans are then replayed together on the
+ * full level. Whenever two groups get in each other's way, the two groups are
+ * merged and the merged group is replanned as one joint search. This repeats
+ * until the combined plan is conflict free, so only groups that actually
+ * interact pay for the joint branching factor.
+ *
+ * Agents of a color with goal boxes start in a shared group, since they can move
+ * the same boxes. Agents of any other color start alone.
+ */
+public class IndependenceDetection
+{
+    private static class Group
+    {
+        int[] agents;
+        Action[][] plan;
+
+        Group(int[] agents)
+        {
+            this.agents = agents;
+        }
+    }
+
+    // The full level, and the search context the group searches copy
+    private final State initialState;
+    private final Level level;
+    private final int[] agentRows;
+    private final int[] agentCols;
+    private final Color[] agentColors;
+    private final boolean[][] walls;
+    private final char[][] boxes;
+    private final Color[] boxColors;
+    private final char[][] goals;
+
+    private IndependenceDetection(State initialState)
+    {
+        this.initialState = initialState;
+        this.level = initialState.level;
+        this.agentRows = initialState.agentRows;
+        this.agentCols = initialState.agentCols;
+        this.agentColors = initialState.level.agentColors;
+        this.walls = initialState.level.walls;
+        this.boxes = initialState.boxes;
+        this.boxColors = initialState.level.boxColors;
+        this.goals = initialState.level.goals;
+    }
+
+    public static Action[][] search(State initialState, String strategy, int w)
+    {
+        return new IndependenceDetection(initialState).run(strategy, w);
+    }
+
+    private Action[][] run(String strategy, int w)
+    {
+        int numAgents = this.agentRows.length;
+
+        ArrayList<Group> groups = this.initialGroups(numAgents);
+        System.err.format("Independence detection: %d agents in %d initial groups.\n", numAgents, groups.size());
+
+        for (Group group : groups)
+        {
+            group.plan = this.plan(group, strategy, w);
+            if (group.plan == null)
+            {
+                return null;
+            }
+        }
+
+        while (true)
+        {
+            // A single group is a plain joint search, there is nothing left to merge
+            int[] conflict = groups.size() > 1 ? this.findConflict(groups, numAgents) : null;
+            if (conflict == null)
+            {
+                break;
+            }
+
+            // Merge the conflicting groups (all groups if the culprits could not be told apart)
+            Group merged;
+            if (conflict.length == 2)
+            {
+                Group a = groups.get(conflict[0]);
+                Group b = groups.get(conflict[1]);
+                int[] agents = Arrays.copyOf(a.agents, a.agents.length + b.agents.length);
+                System.arraycopy(b.agents, 0, agents, a.agents.length, b.agents.length);
+                Arrays.sort(agents);
+                groups.remove(a);
+                groups.remove(b);
+                merged = new Group(agents);
+            }
+            else
+            {
+                int[] agents = new int[numAgents];
+                Arrays.setAll(agents, i -> i);
+                groups.clear();
+                merged = new Group(agents);
+            }
+            groups.add(merged);
+            System.err.format("Independence detection: merged agents %s, %d groups left.\n",
+                              Arrays.toString(merged.agents), groups.size());
+
+            merged.plan = this.plan(merged, strategy, w);
+            if (merged.plan == null)
+            {
+                return null;
+            }
+        }
+
+        return combine(groups, numAgents);
+    }
+
+    private ArrayList<Group> initialGroups(int numAgents)
+    {
+        // Colors with at least one box that has a goal
+        boolean[] colorHasGoalBoxes = new boolean[Color.values().length];
+        for (int row = 0; row < this.goals.length; row++)
+        {
+            for (int col = 0; col < this.goals[row].length; col++)
+            {
+                char goal = this.goals[row][col];
+                if ('A' <= goal && goal <= 'Z' && this.boxColors[goal - 'A'] != null)
+                {
+                    colorHasGoalBoxes[this.boxColors[goal - 'A'].ordinal()] = true;
+                }
+            }
+        }
+
+        ArrayList<Group> groups = new ArrayList<>();
+        Group[] colorGroups = new Group[Color.values().length];
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            int color = this.agentColors[agent].ordinal();
+            if (!colorHasGoalBoxes[color])
+            {
+                groups.add(new Group(new int[]{agent}));
+            }
+            else if (colorGroups[color] == null)
+            {
+                colorGroups[color] = new Group(new int[]{agent});
+                groups.add(colorGroups[color]);
+            }
+            else
+            {
+                Group group = colorGroups[color];
+                group.agents = Arrays.copyOf(group.agents, group.agents.length + 1);
+                group.agents[group.agents.length - 1] = agent;
+            }
+        }
+        return groups;
+    }
+
+    /*
+     * Plans a group on its own: the group's agents (renumbered from 0), the boxes
+     * of their colors and the goals for those. Boxes that no agent in the level can
+     * move are turned into walls; boxes of other groups are left out.
+     */
+    private Action[][] plan(Group group, String strategy, int w)
+    {
+        int k = group.agents.length;
+        int[] rows = new int[k];
+        int[] cols = new int[k];
+        Color[] colors = new Color[k];
+        boolean[] groupColor = new boolean[Color.values().length];
+        boolean[] movableColor = new boolean[Color.values().length];
+        for (int agent = 0; agent < this.agentRows.length; ++agent)
+        {
+            movableColor[this.agentColors[agent].ordinal()] = true;
+        }
+        for (int i = 0; i < k; ++i)
+        {
+            int agent = group.agents[i];
+            rows[i] = this.agentRows[agent];
+            cols[i] = this.agentCols[agent];
+            colors[i] = this.agentColors[agent];
+            groupColor[colors[i].ordinal()] = true;
+        }
+
+        boolean[][] subWalls = new boolean[this.walls.length][];
+        char[][] subBoxes = new char[this.boxes.length][];
+        char[][] subGoals = new char[this.goals.length][];
+        for (int row = 0; row < this.walls.length; row++)
+        {
+            subWalls[row] = Arrays.copyOf(this.walls[row], this.walls[row].length);
+            subBoxes[row] = new char[this.boxes[row].length];
+            subGoals[row] = new char[this.goals[row].length];
+            for (int col = 0; col < this.walls[row].length; col++)
+            {
+                char box = this.boxes[row][col];
+                if (box != 0)
+                {
+                    Color color = this.boxColors[box - 'A'];
+                    if (color == null || !movableColor[color.ordinal()])
+                    {
+                        subWalls[row][col] = true;
+                    }
+                    else if (groupColor[color.ordinal()])
+                    {
+                        subBoxes[row][col] = box;
+                    }
+                }
+
+                char goal = this.goals[row][col];
+                if ('A' <= goal && goal <= 'Z' && this.boxColors[goal - 'A'] != null &&
+                    groupColor[this.boxColors[goal - 'A'].ordinal()])
+                {
+                    subGoals[row][col] = goal;
+                }
+                else if ('0' <= goal && goal <= '9')
+                {
+                    int local = Arrays.binarySearch(group.agents, goal - '0');
+                    if (local >= 0)
+                    {
+                        subGoals[row][col] = (char) ('0' + local);
+                    }
+                }
+            }
+        }
+
+        System.err.format("Independence detection: planning agents %s.\n", Arrays.toString(group.agents));
+        // Each group search gets its own context, with a trail store of its own if
+        // the search of the full level records one
+        SearchContext context = this.initialState.context.copy();
+        context.trail = this.initialState.context.trail != null ? new TrailStore(k) : null;
+        Level subLevel = new Level(colors, subWalls, this.boxColors, subGoals);
+        State subState = new State(subLevel, rows, cols, subBoxes, context);
+        return SearchClient.search(subState, SearchClient.createFrontier(strategy, w, subState));
+    }
+
+    /*
+     * Builds the joint action at the given time step from the group plans. Groups
+     * whose plan has already ended wait with NoOp.
+     */
+    private static Action[] jointAction(ArrayList<Group> groups, int numAgents, int step)
+    {
+        Action[] jointAction = new Action[numAgents];
+        for (Group group : groups)
+        {
+            for (int i = 0; i < group.agents.length; ++i)
+            {
+                jointAction[group.agents[i]] = step < group.plan.length ? group.plan[step][i] : Action.NoOp;
+            }
+        }
+        return jointAction;
+    }
+
+    private static int length(ArrayList<Group> groups)
+    {
+        int length = 0;
+        for (Group group : groups)
+        {
+            length = Math.max(length, group.plan.length);
+        }
+        return length;
+    }
+
+    /*
+     * Replays the combined plan on the full level. Returns null if it is valid,
+     * the indices of two conflicting groups, or an empty array if a conflict was
+     * found but could not be attributed to two distinct groups.
+     */
+    private int[] findConflict(ArrayList<Group> groups, int numAgents)
+    {
+        int[] groupOf = new int[numAgents];
+        for (int g = 0; g < groups.size(); ++g)
+        {
+            for (int agent : groups.get(g).agents)
+            {
+                groupOf[agent] = g;
+            }
+        }
+
+        State state = new State(this.level, this.agentRows, this.agentCols, this.boxes);
+        int length = length(groups);
+        for (int step = 0; step < length; ++step)
+        {
+            Action[] jointAction = jointAction(groups, numAgents, step);
+
+            // Agents blocked by an object of another group
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                Action action = jointAction[agent];
+                if (state.isApplicable(agent, action))
+                {
+                    continue;
+                }
+
+                int[] cell = requiredCell(state, agent, action);
+                int blocker = this.ownerAt(state, cell[0], cell[1], groupOf, groups);
+                if (blocker < 0 || blocker == groupOf[agent])
+                {
+                    return new int[0];
+                }
+                return new int[]{groupOf[agent], blocker};
+            }
+
+            // Agents moving objects into the same cell, or moving the same box
+            int[][] cells = new int[numAgents][];
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                cells[agent] = occupiedCells(state, agent, jointAction[agent]);
+            }
+            for (int a1 = 0; a1 < numAgents; ++a1)
+            {
+                for (int a2 = a1 + 1; a2 < numAgents; ++a2)
+                {
+                    if (overlaps(cells[a1], cells[a2]))
+                    {
+                        if (groupOf[a1] == groupOf[a2])
+                        {
+                            return new int[0];
+                        }
+                        return new int[]{groupOf[a1], groupOf[a2]};
+                    }
+                }
+            }
+
+            state = state.apply(jointAction);
+        }
+
+        return state.isGoalState() ? null : new int[0];
+    }
+
+    /*
+     * The cell that has to be free for the action: the agent's destination for
+     * Move and Pull, the box's destination for Push.
+     */
+    private static int[] requiredCell(State state, int agent, Action action)
+    {
+        int row = state.agentRows[agent] + action.agentRowDelta;
+        int col = state.agentCols[agent] + action.agentColDelta;
+        if (action.type == ActionType.Push)
+        {
+            row += action.boxRowDelta;
+            col += action.boxColDelta;
+        }
+        return new int[]{row, col};
+    }
+
+    /*
+     * Index of the group owning the agent or box at (row, col), or -1.
+     */
+    private int ownerAt(State state, int row, int col, int[] groupOf, ArrayList<Group> groups)
+    {
+        for (int agent = 0; agent < state.agentRows.length; ++agent)
+        {
+            if (state.agentRows[agent] == row && state.agentCols[agent] == col)
+            {
+                return groupOf[agent];
+            }
+        }
+
+        char box = state.boxes[row][col];
+        if (box != 0)
+        {
+            for (int agent = 0; agent < groupOf.length; ++agent)
+            {
+                if (this.agentColors[agent] == this.boxColors[box - 'A'])
+                {
+                    return groupOf[agent];
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Cells an action moves an object into, plus the cell of the box it moves, as
+     * row/col pairs. Two agents conflict if these overlap.
+     */
+    private static int[] occupiedCells(State state, int agent, Action action)
+    {
+        int row = state.agentRows[agent];
+        int col = state.agentCols[agent];
+        switch (action.type)
+        {
+            case Move:
+                return new int[]{row + action.agentRowDelta, col + action.agentColDelta};
+            case Pull:
+                return new int[]{row + action.agentRowDelta, col + action.agentColDelta,
+                                 row - action.boxRowDelta, col - action.boxColDelta};
+            case Push:
+                int boxRow = row + action.agentRowDelta;
+                int boxCol = col + action.agentColDelta;
+                return new int[]{boxRow + action.boxRowDelta, boxCol + action.boxColDelta, boxRow, boxCol};
+            default:
+                return new int[0];
+        }
+    }
+
+    private static boolean overlaps(int[] cells1, int[] cells2)
+    {
+        for (int i = 0; i < cells1.length; i += 2)
+        {
+            for (int j = 0; j < cells2.length; j += 2)
+            {
+                if (cells1[i] == cells2[j] && cells1[i + 1] == cells2[j + 1])
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Action[][] combine(ArrayList<Group> groups, int numAgents)
+    {
+        int length = length(groups);
+        Action[][] plan = new Action[length][];
+        for (int step = 0; step < length; ++step)
+        {
+            plan[step] = jointAction(groups, numAgents, step);
+        }
+        return plan;
+    }
+}
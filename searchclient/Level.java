@@ -0,0 +1,285 @@
+package searchclient;
+
+import java.util.Arrays;
+
+/*
+ * The static layout of a level: walls, goals and colors, plus tables derived
+ * from them. Every state of a search refers to the same Level, so nothing here
+ * changes after construction and several searches (of the same or different
+ * levels) can run side by side in one JVM.
+ *
+ * Sub-planners that search a part of a level (independence detection, the
+ * subgoal planner) build their own Level for each sub-search.
+ */
+public class Level
+{
+    /*
+        The walls and goals arrays are indexed from the top-left of the level, row-major order (row, col).
+        walls[row][col] is true if there's a wall at (row, col), goals[row][col] is the goal letter or
+        agent digit at (row, col), or 0.
+    */
+    public final boolean[][] walls;
+    public final char[][] goals;
+
+    /*
+        The agent colors are indexed by agent number, one per agent of the level. The box colors are
+        indexed alphabetically, boxColors[0] being the color of A boxes; letters that are not in the
+        level have a null color.
+    */
+    public final Color[] agentColors;
+    public final Color[] boxColors;
+
+    public final int numRows;
+    public final int numCols;
+
+    // Total number of goals, and number of agent goals
+    public final int numGoals;
+    public final int numAgentGoals;
+
+    /*
+     * Array containing x/y coordinates of every goal in the level. Look up
+     * coordinates of a goal with: goalCoords[goalNum][0 for y-coordinate, 1 for x-coordinate];
+     */
+    public final int[][] goalCoords;
+
+    /*
+     * Goals by what they are for: letterGoals[letter - 'A'] lists the goal
+     * numbers (indices into goalCoords) of that letter, empty for letters without
+     * goals, and agentGoals[agent] is the goal number of the agent's goal or -1.
+     */
+    public final int[][] letterGoals;
+    public final int[] agentGoals;
+
+    // Free cells numbered 0 .. numCells - 1 in row-major order; walls have index -1
+    public final int numCells;
+    public final int[][] cellIndex;
+    public final int[] cellRows;
+    public final int[] cellCols;
+
+    /*
+     * Relevance of agents and box letters (see SearchContext.relevancePruning): a letter
+     * is relevant if it has goals, an agent if it has a goal or the color of a
+     * relevant letter. Irrelevant agents never have work to do.
+     */
+    public final boolean[] relevantAgents;
+    public final boolean[] relevantLetters;
+
+    // Symmetry class of each agent: the lowest numbered agent that it can be
+    // swapped with (itself if it has a goal or a unique color).
+    final int[] agentClasses;
+
+    // Cells walled in to the east and west (a north-south corridor) and to the
+    // north and south (an east-west corridor).
+    final boolean[][] verticalTunnels;
+    final boolean[][] horizontalTunnels;
+
+    // Full text of the level as sent by the server, or null for derived layouts.
+    // Keys the level cache.
+    final String text;
+
+    // Arguments are not copied, and therefore should not be modified after being passed in.
+    public Level(Color[] agentColors, boolean[][] walls, Color[] boxColors, char[][] goals)
+    {
+        this(agentColors, walls, boxColors, goals, null);
+    }
+
+    public Level(Color[] agentColors, boolean[][] walls, Color[] boxColors, char[][] goals, String text)
+    {
+        this.agentColors = agentColors;
+        this.walls = walls;
+        this.boxColors = boxColors;
+        this.goals = goals;
+        this.text = text;
+        this.numRows = walls.length;
+        this.numCols = walls.length > 0 ? walls[0].length : 0;
+
+        int numGoals = 0;
+        int numAgentGoals = 0;
+        for (char[] row : goals)
+        {
+            for (char goal : row)
+            {
+                if (goal != 0)
+                {
+                    ++numGoals;
+                    if ('0' <= goal && goal <= '9')
+                    {
+                        ++numAgentGoals;
+                    }
+                }
+            }
+        }
+        this.numGoals = numGoals;
+        this.numAgentGoals = numAgentGoals;
+        if (State.DEBUG)
+        {
+            System.err.println("Total num goals: " + numGoals);
+            System.err.println("Total num agents: " + numAgentGoals);
+        }
+
+        this.goalCoords = new int[numGoals][];
+        int k = 0;
+        for (int row = 0; row < goals.length; row++)
+        {
+            for (int col = 0; col < goals[row].length; col++)
+            {
+                if (goals[row][col] != 0)
+                {
+                    this.goalCoords[k++] = new int[]{col, row};
+                }
+            }
+        }
+
+        int[] letterCounts = new int[26];
+        this.agentGoals = new int[agentColors.length];
+        Arrays.fill(this.agentGoals, -1);
+        for (int goal = 0; goal < numGoals; goal++)
+        {
+            char id = goals[this.goalCoords[goal][1]][this.goalCoords[goal][0]];
+            if ('A' <= id && id <= 'Z')
+            {
+                ++letterCounts[id - 'A'];
+            }
+            else if ('0' <= id && id - '0' < this.agentGoals.length)
+            {
+                this.agentGoals[id - '0'] = goal;
+            }
+        }
+        this.letterGoals = new int[26][];
+        for (int letter = 0; letter < 26; letter++)
+        {
+            this.letterGoals[letter] = new int[letterCounts[letter]];
+            letterCounts[letter] = 0;
+        }
+        for (int goal = 0; goal < numGoals; goal++)
+        {
+            char id = goals[this.goalCoords[goal][1]][this.goalCoords[goal][0]];
+            if ('A' <= id && id <= 'Z')
+            {
+                this.letterGoals[id - 'A'][letterCounts[id - 'A']++] = goal;
+            }
+        }
+
+        this.cellIndex = new int[walls.length][];
+        int numCells = 0;
+        for (int row = 0; row < walls.length; row++)
+        {
+            this.cellIndex[row] = new int[walls[row].length];
+            for (int col = 0; col < walls[row].length; col++)
+            {
+                this.cellIndex[row][col] = walls[row][col] ? -1 : numCells++;
+            }
+        }
+        this.numCells = numCells;
+        this.cellRows = new int[numCells];
+        this.cellCols = new int[numCells];
+        for (int row = 0; row < walls.length; row++)
+        {
+            for (int col = 0; col < walls[row].length; col++)
+            {
+                int cell = this.cellIndex[row][col];
+                if (cell >= 0)
+                {
+                    this.cellRows[cell] = row;
+                    this.cellCols[cell] = col;
+                }
+            }
+        }
+
+        this.relevantLetters = new boolean[26];
+        this.relevantAgents = new boolean[agentColors.length];
+        for (int letter = 0; letter < 26; letter++)
+        {
+            this.relevantLetters[letter] = this.letterGoals[letter].length > 0;
+        }
+        for (int agent = 0; agent < agentColors.length; agent++)
+        {
+            this.relevantAgents[agent] = this.agentGoals[agent] >= 0;
+            for (int letter = 0; letter < 26; letter++)
+            {
+                if (this.relevantLetters[letter] && boxColors[letter] == agentColors[agent])
+                {
+                    this.relevantAgents[agent] = true;
+                }
+            }
+        }
+
+        this.agentClasses = this.calculateAgentClasses();
+        this.verticalTunnels = new boolean[walls.length][];
+        this.horizontalTunnels = new boolean[walls.length][];
+        this.calculateTunnels();
+    }
+
+    public int numAgents()
+    {
+        return this.agentColors.length;
+    }
+
+    /*
+     * Returns true if the other level has the same layout. States of one search
+     * share their Level, so this is usually an identity check.
+     */
+    public boolean sameLayout(Level other)
+    {
+        return this == other ||
+               (Arrays.equals(this.agentColors, other.agentColors) && Arrays.deepEquals(this.walls, other.walls) &&
+                Arrays.equals(this.boxColors, other.boxColors) && Arrays.deepEquals(this.goals, other.goals));
+    }
+
+    /*
+     * Groups agents that are interchangeable: same color and no agent goal.
+     */
+    private int[] calculateAgentClasses()
+    {
+        int numAgents = this.agentColors.length;
+        boolean[] hasGoal = new boolean[numAgents];
+        for (char[] row : this.goals)
+        {
+            for (char goal : row)
+            {
+                if ('0' <= goal && goal - '0' < numAgents)
+                {
+                    hasGoal[goal - '0'] = true;
+                }
+            }
+        }
+
+        int[] classes = new int[numAgents];
+        for (int agent = 0; agent < numAgents; agent++)
+        {
+            classes[agent] = agent;
+            for (int other = 0; other < agent && !hasGoal[agent]; other++)
+            {
+                if (!hasGoal[other] && this.agentColors[other] == this.agentColors[agent])
+                {
+                    classes[agent] = other;
+                    break;
+                }
+            }
+        }
+        return classes;
+    }
+
+    /*
+     * Marks the corridor cells used by tunnel macros.
+     */
+    private void calculateTunnels()
+    {
+        boolean[][] walls = this.walls;
+        for (int i = 0; i < walls.length; i++)
+        {
+            this.verticalTunnels[i] = new boolean[walls[i].length];
+            this.horizontalTunnels[i] = new boolean[walls[i].length];
+            for (int j = 1; j < walls[i].length - 1; j++)
+            {
+                if (i == 0 || i == walls.length - 1 || walls[i][j])
+                {
+                    continue;
+                }
+                this.verticalTunnels[i][j] = walls[i][j - 1] && walls[i][j + 1];
+                this.horizontalTunnels[i][j] = j < walls[i - 1].length && j < walls[i + 1].length &&
+                                               walls[i - 1][j] && walls[i + 1][j];
+            }
+        }
+    }
+}
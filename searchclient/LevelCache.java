@@ -0,0 +1,147 @@
+package searchclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * On-disk cache of precomputed level analysis (distance tables, pattern
+ * databases, ...). Every level gets a directory named after the SHA-256 of its
+ * text, holding one raw binary file per artifact. Files are memory-mapped when
+ * loaded, so a table is only read from disk as far as it is used, and repeated
+ * runs on the same level skip the precomputation.
+ *
+ * Planners that search sub-levels of the parsed level (independence detection,
+ * the subgoal planner) build levels without text, so their artifacts are keyed
+ * by a hash of the walls and goals instead.
+ *
+ * The cache lives in <tmpdir>/searchclient-cache unless set with "-cache <dir>",
+ * and is turned off with "-nocache".
+ */
+public class LevelCache
+{
+    public static File directory = new File(System.getProperty("java.io.tmpdir"), "searchclient-cache");
+    public static boolean enabled = true;
+
+    /*
+     * Key for a level: the hash of its text if it was parsed from the server,
+     * otherwise a hash of its walls and goals.
+     */
+    public static String key(Level level)
+    {
+        if (level.text != null)
+        {
+            return sha256(level.text.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        StringBuilder layout = new StringBuilder();
+        for (int row = 0; row < level.walls.length; row++)
+        {
+            for (int col = 0; col < level.walls[row].length; col++)
+            {
+                char goal = level.goals[row][col];
+                layout.append(level.walls[row][col] ? '+' : goal != 0 ? goal : ' ');
+            }
+            layout.append('\n');
+        }
+        return sha256(layout.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static File file(Level level, String name)
+    {
+        return new File(new File(directory, key(level)), name + ".bin");
+    }
+
+    /*
+     * Maps the named artifact of the level, or returns null if it is not
+     * cached (or has another size than expected, when expectedBytes >= 0).
+     */
+    public static ByteBuffer mapBytes(Level level, String name, long expectedBytes)
+    {
+        if (!enabled)
+        {
+            return null;
+        }
+
+        File file = file(level, name);
+        if (!file.isFile() || (expectedBytes >= 0 && file.length() != expectedBytes))
+        {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+        {
+            // The mapping stays valid after the channel is closed
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't map cached " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Stores the named artifact of the level. The file is written under
+     * a temporary name and moved into place, so concurrent runs never map a
+     * partly written file.
+     */
+    public static void storeBytes(Level level, String name, byte[] data)
+    {
+        store(level, name, ByteBuffer.wrap(data));
+    }
+
+    private static void store(Level level, String name, ByteBuffer data)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        File file = file(level, name);
+        try
+        {
+            file.getParentFile().mkdirs();
+            File temp = File.createTempFile(name, ".tmp", file.getParentFile());
+            try (RandomAccessFile out = new RandomAccessFile(temp, "rw"))
+            {
+                FileChannel channel = out.getChannel();
+                while (data.hasRemaining())
+                {
+                    channel.write(data);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't write cached " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String sha256(byte[] data)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder key = new StringBuilder();
+            for (byte b : Arrays.copyOf(digest, 16))
+            {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return Integer.toHexString(Arrays.hashCode(data));
+        }
+    }
+}
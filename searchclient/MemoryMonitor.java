@@ -0,0 +1,166 @@
+package searchclient;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/*
+ * Background heap monitor. Registers usage thresholds on the heap memory pools
+ * (the old generation in practice) and listens for the JVM's threshold and GC
+ * notifications. Whenever the heap occupancy after a collection crosses one of
+ * the configured watermarks, the pressure level is raised so that the search can
+ * switch to a leaner mode before running out of memory.
+ *
+ * The level goes down again once a collection brings the occupancy a margin
+ * (HYSTERESIS) below the watermark, for example after a search has finished and
+ * its states were collected, so the next search in the process doesn't start out
+ * lean. A search that has given up memory doesn't get it back, GraphSearch only
+ * reacts when the level rises above what it saw before.
+ */
+public class MemoryMonitor
+{
+    public enum Pressure
+    {
+        Normal,
+        Soft,
+        Hard
+    }
+
+    // Fractions of the maximum heap at which the pressure level is raised.
+    // Can be set from the command line with "-watermarks <soft>,<hard>".
+    public static double softWatermark = 0.70;
+    public static double hardWatermark = 0.85;
+
+    // How far below a watermark the occupancy has to drop to lower the level
+    private static final double HYSTERESIS = 0.05;
+
+    private static volatile Pressure pressure = Pressure.Normal;
+    private static final ArrayList<MemoryPoolMXBean> pools = new ArrayList<>();
+    private static boolean started = false;
+
+    /*
+     * Installs the usage thresholds and notification listeners. Safe to call more
+     * than once; only the first call has an effect.
+     */
+    public static synchronized void start()
+    {
+        if (started)
+        {
+            return;
+        }
+        started = true;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() != MemoryType.HEAP || pool.getUsage().getMax() <= 0)
+            {
+                continue;
+            }
+
+            // Only the old generation supports usage thresholds. Eden and survivor
+            // spaces are routinely full and say nothing about live data.
+            if (!pool.isUsageThresholdSupported() || !pool.isCollectionUsageThresholdSupported())
+            {
+                continue;
+            }
+
+            long max = pool.getUsage().getMax();
+            pool.setUsageThreshold((long) (max * softWatermark));
+            pool.setCollectionUsageThreshold((long) (max * softWatermark));
+            pools.add(pool);
+        }
+
+        NotificationListener listener = (Notification notification, Object handback) -> update();
+
+        // Threshold notifications are sent by the memory MXBean
+        NotificationEmitter memoryEmitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        memoryEmitter.addNotificationListener(listener, notification ->
+                notification.getType().equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED) ||
+                notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED),
+                null);
+
+        // GC notifications let us re-evaluate the level after every collection,
+        // also the ones that happen after the first threshold has been crossed.
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (gc instanceof NotificationEmitter)
+            {
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+            }
+        }
+
+        System.err.format("Memory monitor started with watermarks %.0f%% / %.0f%% of %4.2f MB.\n",
+                          softWatermark * 100, hardWatermark * 100, Memory.max());
+    }
+
+    /*
+     * Current pressure level. A single volatile read, cheap enough to poll once
+     * per expanded node.
+     */
+    public static Pressure pressure()
+    {
+        return pressure;
+    }
+
+    /*
+     * Fraction of the heap in use after the last collection. Pools that report
+     * collection usage are preferred since they exclude garbage; otherwise the
+     * runtime's (noisier) current usage is used.
+     */
+    public static double occupancy()
+    {
+        double occupancy = 0;
+        for (MemoryPoolMXBean pool : pools)
+        {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0)
+            {
+                occupancy = Math.max(occupancy, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        if (pools.isEmpty())
+        {
+            occupancy = Memory.used() / Memory.max();
+        }
+        return occupancy;
+    }
+
+    private static synchronized void update()
+    {
+        double occupancy = occupancy();
+        Pressure next = pressure;
+        if (occupancy >= hardWatermark)
+        {
+            next = Pressure.Hard;
+        }
+        else if (occupancy >= softWatermark && next == Pressure.Normal)
+        {
+            next = Pressure.Soft;
+        }
+        else if (occupancy < softWatermark - HYSTERESIS)
+        {
+            next = Pressure.Normal;
+        }
+        else if (occupancy < hardWatermark - HYSTERESIS && next == Pressure.Hard)
+        {
+            next = Pressure.Soft;
+        }
+
+        if (next.compareTo(pressure) > 0)
+        {
+            System.err.format("Heap occupancy %.1f%% crossed the %s watermark.\n", occupancy * 100, next);
+        }
+        else if (next != pressure)
+        {
+            System.err.format("Heap occupancy %.1f%% dropped, pressure back to %s.\n", occupancy * 100, next);
+        }
+        pressure = next;
+    }
+}
@@ -0,0 +1,187 @@
+package searchclient;
+
+/*
+ * Double-ended priority queue of bounded size over int keys (a min-max heap:
+ * levels alternate between being smaller and larger than everything below
+ * them). Both the smallest and the largest element are found in constant time
+ * and removed in logarithmic time, so a full heap can admit a better element by
+ * evicting its worst one.
+ */
+public class MinMaxHeap<T>
+{
+    private final int[] keys;
+    private final Object[] values;
+    private int size = 0;
+
+    public MinMaxHeap(int capacity)
+    {
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /*
+     * Adds value if there is room or if key is smaller than the largest key, which
+     * is then evicted. Returns the evicted value, value itself if it was not
+     * added, or null.
+     */
+    public T offer(int key, T value)
+    {
+        T evicted = null;
+        if (this.size == this.keys.length)
+        {
+            if (this.size == 0 || key >= this.keys[this.maxIndex()])
+            {
+                return value;
+            }
+            evicted = this.pollMax();
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        this.bubbleUp(this.size++);
+        return evicted;
+    }
+
+    public T pollMin()
+    {
+        return this.remove(0);
+    }
+
+    public T pollMax()
+    {
+        return this.remove(this.maxIndex());
+    }
+
+    public int minKey()
+    {
+        return this.keys[0];
+    }
+
+    private int maxIndex()
+    {
+        if (this.size <= 2)
+        {
+            return this.size - 1;
+        }
+        return this.keys[1] >= this.keys[2] ? 1 : 2;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T remove(int i)
+    {
+        T value = (T) this.values[i];
+        --this.size;
+        this.keys[i] = this.keys[this.size];
+        this.values[i] = this.values[this.size];
+        this.values[this.size] = null;
+        if (i < this.size)
+        {
+            this.trickleDown(i);
+        }
+        return value;
+    }
+
+    // Levels 0, 2, 4, ... are min levels
+    private static boolean isMinLevel(int i)
+    {
+        return (31 - Integer.numberOfLeadingZeros(i + 1)) % 2 == 0;
+    }
+
+    // Sign that makes comparisons on a level of i read as "less than" on min levels
+    private static int sign(int i)
+    {
+        return isMinLevel(i) ? 1 : -1;
+    }
+
+    private void bubbleUp(int i)
+    {
+        if (i == 0)
+        {
+            return;
+        }
+        int parent = (i - 1) / 2;
+        if (sign(i) * Integer.compare(this.keys[i], this.keys[parent]) > 0)
+        {
+            this.swap(i, parent);
+            this.bubbleUpGrandparents(parent);
+        }
+        else
+        {
+            this.bubbleUpGrandparents(i);
+        }
+    }
+
+    private void bubbleUpGrandparents(int i)
+    {
+        int s = sign(i);
+        while (i > 2)
+        {
+            int grandparent = ((i - 1) / 2 - 1) / 2;
+            if (s * Integer.compare(this.keys[i], this.keys[grandparent]) >= 0)
+            {
+                break;
+            }
+            this.swap(i, grandparent);
+            i = grandparent;
+        }
+    }
+
+    private void trickleDown(int i)
+    {
+        int s = sign(i);
+        while (2 * i + 1 < this.size)
+        {
+            // The extreme of the children and grandchildren
+            int m = 2 * i + 1;
+            for (int c = 2 * i + 1; c <= 2 * i + 2 && c < this.size; c++)
+            {
+                if (s * Integer.compare(this.keys[c], this.keys[m]) < 0)
+                {
+                    m = c;
+                }
+                for (int g = 2 * c + 1; g <= 2 * c + 2 && g < this.size; g++)
+                {
+                    if (s * Integer.compare(this.keys[g], this.keys[m]) < 0)
+                    {
+                        m = g;
+                    }
+                }
+            }
+
+            if (s * Integer.compare(this.keys[m], this.keys[i]) >= 0)
+            {
+                return;
+            }
+            this.swap(m, i);
+            if (m <= 2 * i + 2)
+            {
+                return;
+            }
+            int parent = (m - 1) / 2;
+            if (s * Integer.compare(this.keys[m], this.keys[parent]) > 0)
+            {
+                this.swap(m, parent);
+            }
+            i = m;
+        }
+    }
+
+    private void swap(int a, int b)
+    {
+        int key = this.keys[a];
+        this.keys[a] = this.keys[b];
+        this.keys[b] = key;
+        Object value = this.values[a];
+        this.values[a] = this.values[b];
+        this.values[b] = value;
+    }
+}
@@ -0,0 +1,149 @@
+package searchclient;
+
+/*
+ * Novelty test of width-based search: which atoms, and pairs of atoms, have been
+ * true in some state seen so far.
+ *
+ * An atom is an object at a cell: an agent, or a box of some letter (boxes of
+ * one letter are interchangeable), at one of the free cells of the level. The
+ * novelty of a state is the size of the smallest tuple of its atoms that no
+ * earlier state had: 1 if it has a new atom, 2 if it only has a new pair, and
+ * width + 1 if it has nothing new up to the width of the table.
+ *
+ * Seen atoms and pairs are kept as bits, so a table of width 1 takes
+ * atoms / 8 bytes and one of width 2 about atoms^2 / 16 bytes, independent of
+ * the number of states seen.
+ */
+public class NoveltyTable
+{
+    public final int width;
+
+    private final Level level;
+    private final int numAgents;
+    private final int[] letterObjects;
+    private final long numAtoms;
+    private final long[] atomBits;
+    private final long[] pairBits;
+    private final int[] atoms;
+
+    /*
+     * Width 2 falls back to width 1 if the pair table would take more than
+     * maxPairBytes.
+     */
+    public NoveltyTable(State initialState, int width, long maxPairBytes)
+    {
+        this.level = initialState.level;
+        this.numAgents = initialState.agentRows.length;
+
+        // Objects are the agents, then the box letters of the level
+        this.letterObjects = new int[26];
+        int numObjects = this.numAgents;
+        int numBoxes = 0;
+        for (char[] row : initialState.boxes)
+        {
+            for (char box : row)
+            {
+                if (box != 0)
+                {
+                    ++numBoxes;
+                    if (this.letterObjects[box - 'A'] == 0)
+                    {
+                        this.letterObjects[box - 'A'] = ++numObjects;
+                    }
+                }
+            }
+        }
+        for (int letter = 0; letter < 26; letter++)
+        {
+            --this.letterObjects[letter];
+        }
+
+        this.numAtoms = (long) numObjects * this.level.numCells;
+        this.atomBits = new long[(int) ((this.numAtoms + 63) / 64)];
+        long pairs = this.numAtoms * (this.numAtoms - 1) / 2;
+        if (width >= 2 && (pairs + 63) / 64 * 8 > maxPairBytes)
+        {
+            System.err.format("Novelty pair table would take %,d bytes, using width 1.\n", (pairs + 63) / 64 * 8);
+            width = 1;
+        }
+        this.width = Math.min(width, 2);
+        this.pairBits = this.width == 2 ? new long[(int) ((pairs + 63) / 64)] : null;
+        this.atoms = new int[this.numAgents + numBoxes];
+    }
+
+    /*
+     * Size of the pair table, 0 for width 1.
+     */
+    public long pairBytes()
+    {
+        return this.pairBits != null ? this.pairBits.length * 8L : 0;
+    }
+
+    /*
+     * Returns the novelty of s and records its atoms and pairs as seen.
+     */
+    public int novelty(State s)
+    {
+        int count = 0;
+        for (int agent = 0; agent < this.numAgents; agent++)
+        {
+            this.atoms[count++] = (int) (agent * (long) this.level.numCells +
+                                         this.level.cellIndex[s.agentRows[agent]][s.agentCols[agent]]);
+        }
+        for (int row = 0; row < s.boxes.length; row++)
+        {
+            for (int col = 0; col < s.boxes[row].length; col++)
+            {
+                char box = s.boxes[row][col];
+                if (box != 0)
+                {
+                    this.atoms[count++] = (int) (this.letterObjects[box - 'A'] * (long) this.level.numCells +
+                                                 this.level.cellIndex[row][col]);
+                }
+            }
+        }
+
+        int novelty = this.width + 1;
+        for (int i = 0; i < count; i++)
+        {
+            if (set(this.atomBits, this.atoms[i]))
+            {
+                novelty = 1;
+            }
+        }
+        if (this.pairBits != null)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                for (int j = 0; j < i; j++)
+                {
+                    long low = Math.min(this.atoms[i], this.atoms[j]);
+                    long high = Math.max(this.atoms[i], this.atoms[j]);
+                    if (set(this.pairBits, high * (high - 1) / 2 + low) && novelty > 2)
+                    {
+                        novelty = 2;
+                    }
+                }
+            }
+        }
+        return novelty;
+    }
+
+    public long bytes()
+    {
+        return 8L * (this.atomBits.length + (this.pairBits == null ? 0 : this.pairBits.length));
+    }
+
+    // Sets the bit, returning true if it was not set before
+    private static boolean set(long[] bits, long bit)
+    {
+        int word = (int) (bit >>> 6);
+        long mask = 1L << (bit & 63);
+        if ((bits[word] & mask) != 0)
+        {
+            return false;
+        }
+        bits[word] |= mask;
+        return true;
+    }
+}
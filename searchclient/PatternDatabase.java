@@ -0,0 +1,495 @@
+package searchclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/*
+ * Pattern database heuristic (-pdb max|sum).
+ *
+ * A pattern is one agent plus one or two boxes. The level is abstracted to just
+ * those objects (all other boxes and agents are left out) and the exact number
+ * of actions needed to bring the pattern boxes onto goals of their letters is
+ * computed for every placement of the agent and boxes, by breadth-first search
+ * from the goal placements. Moves, pushes and pulls can all be undone by another
+ * action (see Action.reverse), so searching forward from the goals gives the
+ * distances to the goals.
+ *
+ * Tables hold one byte per placement, indexed by the perfect hash
+ * agent + n * (box1 + n * box2) over the n free cells of the level. Boxes of the
+ * same letter are stored in sorted order, since they cannot be told apart.
+ *
+ * Only letters whose color has a single agent get patterns (with more agents of
+ * the color, the one-agent abstraction would overestimate), and only if the
+ * letter has as many boxes as goals. The pattern values are combined by max,
+ * or by sum over the agents of the largest value of each agent's patterns.
+ * Patterns of one agent can't be added, as one move of the agent may bring
+ * each of them closer. Adding over the agents counts the actions of each agent
+ * on its own, but a joint action moves all agents in one step, so on levels
+ * with more than one agent the sum can exceed the plan length: only max is
+ * admissible there, and -astar with sum may return a longer plan than the
+ * optimal one. The result is never less than the regular heuristic.
+ *
+ * Building is bounded by buildSeconds per table. A table that is not finished in
+ * time is still a valid lower bound: placements not reached yet are at least one
+ * more than the last finished BFS layer. Finished tables are stored in the
+ * level cache and memory-mapped on later runs.
+ */
+public class PatternDatabase
+{
+    // How the values of the tables are combined: "max", "sum", or null for off
+    public static String combine = null;
+
+    // Build time per table and whether tables are built on several threads
+    public static double buildSeconds = 10;
+    public static boolean parallel = false;
+
+    // Largest table built, in entries (bytes)
+    private static final int MAX_ENTRIES = 1 << 24;
+
+    // Stored for placements that were not reached, and for distances too large
+    // for a byte, which are capped at 254
+    private static final int UNREACHED = 255;
+
+    // Returned for placements from which the pattern can never reach its goals
+    private static final int DEAD_END = 100000;
+
+    private static final int[] ROW_DELTAS = {-1, 1, 0, 0};
+    private static final int[] COL_DELTAS = {0, 0, 1, -1};
+    private static final int[] OPPOSITE = {1, 0, 3, 2};
+
+    private final int agent;
+    private final char[] letters;
+    private final int numCells;
+    private final int[][] cellIndex;
+    private final int[][] neighbours;
+    private ByteBuffer distances;
+    private byte[] table;
+    private int floor;
+    private boolean complete;
+
+    private PatternDatabase(int agent, char[] letters, int[][] cellIndex, int[][] neighbours, int numCells)
+    {
+        this.agent = agent;
+        this.letters = letters;
+        this.cellIndex = cellIndex;
+        this.neighbours = neighbours;
+        this.numCells = numCells;
+    }
+
+    /*
+     * Builds (or loads from the cache) the pattern databases for the level of the
+     * given state. Returns an empty array if no letter qualifies.
+     */
+    public static PatternDatabase[] build(State initialState)
+    {
+        long startTime = System.nanoTime();
+        Level level = initialState.level;
+        boolean[][] walls = level.walls;
+        char[][] goals = level.goals;
+        int numAgents = initialState.agentRows.length;
+
+        // Free cells and their neighbours (-1 for walls)
+        int[][] cellIndex = new int[walls.length][];
+        int numCells = 0;
+        for (int row = 0; row < walls.length; row++)
+        {
+            cellIndex[row] = new int[walls[row].length];
+            for (int col = 0; col < walls[row].length; col++)
+            {
+                cellIndex[row][col] = walls[row][col] ? -1 : numCells++;
+            }
+        }
+        int[][] neighbours = new int[numCells][4];
+        for (int row = 0; row < walls.length; row++)
+        {
+            for (int col = 0; col < walls[row].length; col++)
+            {
+                int cell = cellIndex[row][col];
+                for (int d = 0; d < 4 && cell >= 0; d++)
+                {
+                    int r = row + ROW_DELTAS[d];
+                    int c = col + COL_DELTAS[d];
+                    boolean inside = r >= 0 && r < walls.length && c >= 0 && c < walls[r].length;
+                    neighbours[cell][d] = inside ? cellIndex[r][c] : -1;
+                }
+            }
+        }
+
+        // Letters that qualify, with the single agent of their color
+        int[] boxCount = new int[26];
+        int[] goalCount = new int[26];
+        for (int row = 0; row < goals.length; row++)
+        {
+            for (int col = 0; col < goals[row].length; col++)
+            {
+                if (initialState.boxes[row][col] != 0)
+                {
+                    ++boxCount[initialState.boxes[row][col] - 'A'];
+                }
+                if ('A' <= goals[row][col] && goals[row][col] <= 'Z')
+                {
+                    ++goalCount[goals[row][col] - 'A'];
+                }
+            }
+        }
+        long pairEntries = (long) numCells * numCells * numCells;
+        ArrayList<PatternDatabase> patterns = new ArrayList<>();
+        int open = -1;
+        for (int letter = 0; letter < 26; letter++)
+        {
+            int agent = singleAgent(level, level.boxColors[letter], numAgents);
+            if (goalCount[letter] == 0 || goalCount[letter] != boxCount[letter] || agent < 0 ||
+                boxCount[letter] > (pairEntries <= MAX_ENTRIES ? 2 : 1) || (long) numCells * numCells > MAX_ENTRIES)
+            {
+                continue;
+            }
+
+            char c = (char) ('A' + letter);
+            if (boxCount[letter] == 2)
+            {
+                patterns.add(new PatternDatabase(agent, new char[]{c, c}, cellIndex, neighbours, numCells));
+            }
+            else if (open >= 0 && patterns.get(open).agent == agent && pairEntries <= MAX_ENTRIES)
+            {
+                // Pair up with the previous single-box letter of the same agent
+                char[] letters = {patterns.get(open).letters[0], c};
+                patterns.set(open, new PatternDatabase(agent, letters, cellIndex, neighbours, numCells));
+                open = -1;
+            }
+            else
+            {
+                open = patterns.size();
+                patterns.add(new PatternDatabase(agent, new char[]{c}, cellIndex, neighbours, numCells));
+            }
+        }
+
+        // Patterns of the same agent next to each other, for combine
+        patterns.sort((p1, p2) -> Integer.compare(p1.agent, p2.agent));
+
+        Stream<PatternDatabase> stream = parallel ? patterns.parallelStream() : patterns.stream();
+        stream.forEach(pattern -> pattern.load(level));
+
+        System.err.format("Pattern databases: %d tables (%s) in %.3f s.\n", patterns.size(),
+                          describe(patterns), (System.nanoTime() - startTime) / 1_000_000_000d);
+        return patterns.toArray(new PatternDatabase[0]);
+    }
+
+    private static int singleAgent(Level level, Color color, int numAgents)
+    {
+        int agent = -1;
+        for (int a = 0; a < numAgents && color != null; a++)
+        {
+            if (level.agentColors[a] == color)
+            {
+                if (agent >= 0)
+                {
+                    return -1;
+                }
+                agent = a;
+            }
+        }
+        return agent;
+    }
+
+    private static String describe(ArrayList<PatternDatabase> patterns)
+    {
+        StringBuilder s = new StringBuilder();
+        for (PatternDatabase pattern : patterns)
+        {
+            s.append(s.length() > 0 ? ", " : "").append(pattern.letters).append(pattern.complete ? "" : " partial");
+        }
+        return s.toString();
+    }
+
+    /*
+     * Combines the pattern values for s with the regular heuristic value h.
+     * Patterns are sorted by agent, so the largest value of each agent's patterns
+     * is known once the next agent's patterns begin.
+     */
+    public static int combine(PatternDatabase[] patterns, State s, int h)
+    {
+        int total = 0;
+        int best = 0;
+        int agentBest = 0;
+        for (int i = 0; i < patterns.length; i++)
+        {
+            int value = patterns[i].value(s);
+            if (value >= DEAD_END)
+            {
+                return DEAD_END;
+            }
+            if (i > 0 && patterns[i].agent != patterns[i - 1].agent)
+            {
+                total += agentBest;
+                agentBest = 0;
+            }
+            agentBest = Math.max(agentBest, value);
+            best = Math.max(best, value);
+        }
+        total += agentBest;
+        return Math.max(h, combine.equals("sum") ? total : best);
+    }
+
+    private int index(int agentCell, int[] boxCells)
+    {
+        int index = 0;
+        for (int i = boxCells.length - 1; i >= 0; i--)
+        {
+            index = index * this.numCells + boxCells[i];
+        }
+        return index * this.numCells + agentCell;
+    }
+
+    /*
+     * Value of the pattern in state s: the table entry for the current cells of
+     * the agent and the pattern boxes.
+     */
+    private int value(State s)
+    {
+        // Boxes are found in cell order, so boxes of the same letter come out sorted
+        int[] boxCells = new int[this.letters.length];
+        Arrays.fill(boxCells, -1);
+        for (int row = 0; row < s.boxes.length; row++)
+        {
+            for (int col = 0; col < s.boxes[row].length; col++)
+            {
+                char box = s.boxes[row][col];
+                for (int i = 0; i < this.letters.length && box != 0; i++)
+                {
+                    if (this.letters[i] == box && boxCells[i] < 0)
+                    {
+                        boxCells[i] = this.cellIndex[row][col];
+                        break;
+                    }
+                }
+            }
+        }
+
+        int agentCell = this.cellIndex[s.agentRows[this.agent]][s.agentCols[this.agent]];
+        int value = this.distances.get(this.index(agentCell, boxCells)) & 0xFF;
+        if (value != UNREACHED)
+        {
+            return value;
+        }
+        return this.complete ? DEAD_END : this.floor;
+    }
+
+    /*
+     * Maps the table from the level cache, or builds it and caches it if finished.
+     */
+    private void load(Level level)
+    {
+        String name = "pdb-" + this.agent + "-" + new String(this.letters);
+        int entries = (int) Math.pow(this.numCells, this.letters.length + 1);
+        this.distances = LevelCache.mapBytes(level, name, entries);
+        if (this.distances != null)
+        {
+            this.complete = true;
+            return;
+        }
+
+        this.bfs(level.goals, entries);
+        if (this.complete)
+        {
+            LevelCache.storeBytes(level, name, this.table);
+        }
+        this.distances = ByteBuffer.wrap(this.table);
+        this.table = null;
+    }
+
+    /*
+     * Breadth-first search from all goal placements of the pattern boxes, one
+     * layer at a time.
+     */
+    private void bfs(char[][] goals, int entries)
+    {
+        long deadline = System.nanoTime() + (long) (buildSeconds * 1_000_000_000d);
+        this.table = new byte[entries];
+        Arrays.fill(this.table, (byte) UNREACHED);
+
+        // Goal cells of each pattern letter
+        int[][] goalCells = new int[this.letters.length][];
+        for (int i = 0; i < this.letters.length; i++)
+        {
+            int[] cells = new int[0];
+            for (int row = 0; row < goals.length; row++)
+            {
+                for (int col = 0; col < goals[row].length; col++)
+                {
+                    if (goals[row][col] == this.letters[i])
+                    {
+                        cells = Arrays.copyOf(cells, cells.length + 1);
+                        cells[cells.length - 1] = this.cellIndex[row][col];
+                    }
+                }
+            }
+            goalCells[i] = cells;
+        }
+
+        // Layer 0: boxes on goals, agent on any other cell
+        IntQueue layer = new IntQueue();
+        int[] boxCells = new int[this.letters.length];
+        for (int g0 : goalCells[0])
+        {
+            for (int g1 : this.letters.length > 1 ? goalCells[1] : new int[]{-1})
+            {
+                if (g1 == g0 || (this.letters.length > 1 && this.letters[0] == this.letters[1] && g1 < g0))
+                {
+                    continue;
+                }
+                boxCells[0] = g0;
+                if (this.letters.length > 1)
+                {
+                    boxCells[1] = g1;
+                }
+                for (int agentCell = 0; agentCell < this.numCells; agentCell++)
+                {
+                    if (agentCell != g0 && agentCell != g1)
+                    {
+                        int index = this.index(agentCell, boxCells);
+                        this.table[index] = 0;
+                        layer.add(index);
+                    }
+                }
+            }
+        }
+
+        int depth = 0;
+        this.complete = true;
+        while (layer.size() > 0)
+        {
+            IntQueue next = new IntQueue();
+            int value = Math.min(depth + 1, UNREACHED - 1);
+            for (int i = 0; i < layer.size(); i++)
+            {
+                if ((i & 4095) == 0 && System.nanoTime() > deadline)
+                {
+                    // Unreached placements are at least one more than this layer
+                    this.complete = false;
+                    this.floor = depth + 1;
+                    return;
+                }
+                this.expand(layer.get(i), boxCells, value, next);
+            }
+            layer = next;
+            depth++;
+        }
+    }
+
+    /*
+     * Marks the unreached placements one action away from the placement at index
+     * with value and adds them to next.
+     */
+    private void expand(int index, int[] boxCells, int value, IntQueue next)
+    {
+        int agentCell = index % this.numCells;
+        int rest = index / this.numCells;
+        for (int i = 0; i < boxCells.length; i++)
+        {
+            boxCells[i] = rest % this.numCells;
+            rest /= this.numCells;
+        }
+
+        for (int d = 0; d < 4; d++)
+        {
+            int target = this.neighbours[agentCell][d];
+            if (target < 0)
+            {
+                continue;
+            }
+
+            int box = boxAt(boxCells, target);
+            if (box >= 0)
+            {
+                // Push the box on in any direction but back onto the agent
+                for (int d2 = 0; d2 < 4; d2++)
+                {
+                    int boxTarget = this.neighbours[target][d2];
+                    if (d2 != OPPOSITE[d] && boxTarget >= 0 && boxAt(boxCells, boxTarget) < 0)
+                    {
+                        this.visit(target, boxCells, box, boxTarget, value, next);
+                    }
+                }
+                continue;
+            }
+
+            // Move
+            this.visit(target, boxCells, -1, -1, value, next);
+
+            // Pull a neighbouring box into the agent's cell
+            for (int d2 = 0; d2 < 4; d2++)
+            {
+                int boxCell = this.neighbours[agentCell][d2];
+                int pulled = boxCell >= 0 && boxCell != target ? boxAt(boxCells, boxCell) : -1;
+                if (pulled >= 0)
+                {
+                    this.visit(target, boxCells, pulled, agentCell, value, next);
+                }
+            }
+        }
+    }
+
+    private static int boxAt(int[] boxCells, int cell)
+    {
+        for (int i = 0; i < boxCells.length; i++)
+        {
+            if (boxCells[i] == cell)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void visit(int agentCell, int[] boxCells, int box, int boxCell, int value, IntQueue next)
+    {
+        int[] cells = boxCells;
+        if (box >= 0)
+        {
+            cells = Arrays.copyOf(boxCells, boxCells.length);
+            cells[box] = boxCell;
+            if (cells.length > 1 && this.letters[0] == this.letters[1] && cells[0] > cells[1])
+            {
+                int tmp = cells[0];
+                cells[0] = cells[1];
+                cells[1] = tmp;
+            }
+        }
+        int index = this.index(agentCell, cells);
+        if ((this.table[index] & 0xFF) == UNREACHED)
+        {
+            this.table[index] = (byte) value;
+            next.add(index);
+        }
+    }
+
+    /*
+     * Growable queue of ints, to keep BFS layers without boxing.
+     */
+    private static class IntQueue
+    {
+        private int[] items = new int[1024];
+        private int size = 0;
+
+        void add(int item)
+        {
+            if (this.size == this.items.length)
+            {
+                this.items = Arrays.copyOf(this.items, this.size * 2);
+            }
+            this.items[this.size++] = item;
+        }
+
+        int get(int i)
+        {
+            return this.items[i];
+        }
+
+        int size()
+        {
+            return this.size;
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package searchclient;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
 
@@ -15,6 +16,17 @@ public class SearchClient
     throws IOException
     {
         // We can assume that the level file is conforming to specification, since the server verifies this.
+        // Read the whole level first, its text is the key of the level cache
+        StringBuilder levelText = new StringBuilder();
+        String line;
+        do
+        {
+            line = serverMessages.readLine();
+            levelText.append(line).append('\n');
+        }
+        while (!line.startsWith("#end"));
+        serverMessages = new BufferedReader(new StringReader(levelText.toString()));
+
         // Read domain
         serverMessages.readLine(); // #domain
         serverMessages.readLine(); // hospital
@@ -23,28 +35,13 @@ public class SearchClient
         serverMessages.readLine(); // #levelname
         serverMessages.readLine(); // <name>
 
-        // Read colors
+        // Read colors, they are assigned once the number of agents is known
         serverMessages.readLine(); // #colors
-        Color[] agentColors = new Color[10];
-        Color[] boxColors = new Color[26];
-        String line = serverMessages.readLine();
+        ArrayList<String> colorLines = new ArrayList<>();
+        line = serverMessages.readLine();
         while (!line.startsWith("#"))
         {
-            String[] split = line.split(":");
-            Color color = Color.fromString(split[0].strip());
-            String[] entities = split[1].split(",");
-            for (String entity : entities)
-            {
-                char c = entity.strip().charAt(0);
-                if ('0' <= c && c <= '9')
-                {
-                    agentColors[c - '0'] = color;
-                }
-                else if ('A' <= c && c <= 'Z')
-                {
-                    boxColors[c - 'A'] = color;
-                }
-            }
+            colorLines.add(line);
             line = serverMessages.readLine();
         }
 
@@ -62,8 +59,19 @@ public class SearchClient
                 line = serverMessages.readLine();
         }
         int numAgents = 0;
-        int[] agentRows = new int[10];
-        int[] agentCols = new int[10];
+        for (String levelLine : levelLines)
+        {
+            for (int col = 0; col < levelLine.length(); ++col)
+            {
+                char c = levelLine.charAt(col);
+                if ('0' <= c && c <= '9')
+                {
+                    numAgents = Math.max(numAgents, c - '0' + 1);
+                }
+            }
+        }
+        int[] agentRows = new int[numAgents];
+        int[] agentCols = new int[numAgents];
         boolean[][] walls = new boolean[numRows][numCols];
         char[][] boxes = new char[numRows][numCols];
         for (int row = 0; row < numRows; ++row)
@@ -77,7 +85,6 @@ public class SearchClient
                 {
                     agentRows[c - '0'] = row;
                     agentCols[c - '0'] = col;
-                    ++numAgents;
                 }
                 else if ('A' <= c && c <= 'Z')
                 {
@@ -89,8 +96,27 @@ public class SearchClient
                 }
             }
         }
-        agentRows = Arrays.copyOf(agentRows, numAgents);
-        agentCols = Arrays.copyOf(agentCols, numAgents);
+
+        Color[] agentColors = new Color[numAgents];
+        Color[] boxColors = new Color[26];
+        for (String colorLine : colorLines)
+        {
+            String[] split = colorLine.split(":");
+            Color color = Color.fromString(split[0].strip());
+            String[] entities = split[1].split(",");
+            for (String entity : entities)
+            {
+                char c = entity.strip().charAt(0);
+                if ('0' <= c && c - '0' < numAgents)
+                {
+                    agentColors[c - '0'] = color;
+                }
+                else if ('A' <= c && c <= 'Z')
+                {
+                    boxColors[c - 'A'] = color;
+                }
+            }
+        }
 
         // Read goal state
         // line is currently "#goal"
@@ -116,9 +142,25 @@ public class SearchClient
         // End
         // line is currently "#end"
 
-        return new State(agentRows, agentCols, agentColors, walls, boxes, boxColors, goals);
+        Level level = new Level(agentColors, walls, boxColors, goals, levelText.toString());
+        return new State(level, agentRows, agentCols, boxes);
     }
 
+    /*
+     * Best-first strategies evaluate states when they are popped instead of when
+     * they are generated (-deferred), optionally with a second queue for states
+     * reached by helpful actions (-preferred, implies -deferred). Both give up
+     * optimality, so they are ignored for -astar.
+     */
+    public static boolean deferredEvaluation = false;
+    public static boolean preferredOperators = false;
+
+    /*
+     * The heuristics of the alternating search (-alt), one queue each. Defaults
+     * to all of them.
+     */
+    public static String[] alternatingHeuristics = Heuristic.CHOICES;
+
     public static Action[][] search(State initialState, Frontier frontier)
     {
         System.err.format("Starting %s.\n", frontier.getName());
@@ -126,6 +168,52 @@ public class SearchClient
         return GraphSearch.search(initialState, frontier);
     }
 
+    /*
+     * Creates a new frontier for the given strategy argument (-bfs, -dfs, -astar,
+     * -wastar, -greedy, -alt, -bfws). Strategies that are not frontier based (-cbs, -iw, -beam,
+     * -bidir, -subgoals, -extbfs) are dispatched in main. Heuristics are built for the level of the given state, so
+     * planners that split a level into sub-searches create one frontier per
+     * sub-search.
+     */
+    public static Frontier createFrontier(String strategy, int w, State initialState)
+    {
+        switch (strategy)
+        {
+            case "-bfs":
+                return new FrontierBFS();
+            case "-dfs":
+                return new FrontierDFS();
+            case "-astar":
+                return SearchClient.bestFirst(new HeuristicAStar(initialState));
+            case "-wastar":
+                return SearchClient.bestFirst(new HeuristicWeightedAStar(initialState, w));
+            case "-greedy":
+                return SearchClient.bestFirst(new HeuristicGreedy(initialState));
+            case "-alt":
+                Heuristic[] heuristics = new Heuristic[alternatingHeuristics.length];
+                for (int i = 0; i < heuristics.length; i++)
+                {
+                    heuristics[i] = new HeuristicGreedy(initialState, alternatingHeuristics[i]);
+                }
+                return new FrontierAlternating(heuristics);
+            case "-bfws":
+                return new FrontierWidth(initialState);
+            default:
+                System.err.println("Defaulting to BFS search. Use arguments -bfs, -dfs, -astar, -wastar, -greedy, " +
+                                   "-alt, -bfws, -iw or -beam to set the search strategy.");
+                return new FrontierBFS();
+        }
+    }
+
+    private static Frontier bestFirst(Heuristic heuristic)
+    {
+        if (deferredEvaluation || preferredOperators)
+        {
+            return new FrontierDeferred(heuristic, preferredOperators);
+        }
+        return new FrontierBestFirst(heuristic);
+    }
+
     public static void main(String[] args)
     throws IOException
     {
@@ -142,64 +230,342 @@ public class SearchClient
         BufferedReader serverMessages = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
         State initialState = SearchClient.parseLevel(serverMessages);
 
-        // Select search strategy.
-        Frontier frontier;
-        if (args.length > 0)
+        // Parse optional flags following the search strategy. Search settings go
+        // into the context of the parsed level, which its searches start from.
+        SearchContext context = initialState.context;
+        boolean independenceDetection = false;
+        boolean bidirectional = false;
+        boolean subgoals = false;
+        boolean externalBFS = false;
+        for (int i = 1; i < args.length; ++i)
         {
-            switch (args[0].toLowerCase(Locale.ROOT))
+            switch (args[i].toLowerCase(Locale.ROOT))
             {
-                case "-bfs":
-                    frontier = new FrontierBFS();
+                case "-watermarks":
+                    // Fractions of the max heap, e.g. "-watermarks 0.7,0.85"
+                    try
+                    {
+                        String[] split = args[++i].split(",");
+                        MemoryMonitor.softWatermark = Double.parseDouble(split[0]);
+                        MemoryMonitor.hardWatermark = Double.parseDouble(split[1]);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        System.err.println("Couldn't parse -watermarks argument as <soft>,<hard>, using defaults.");
+                    }
+                    break;
+                case "-trail":
+                    // Record the search tree in the compact trail store from the start
+                    context.trail = new TrailStore(initialState.agentRows.length);
+                    break;
+                case "-od":
+                    // Assign joint actions one agent at a time
+                    context.operatorDecomposition = true;
+                    break;
+                case "-id":
+                    // Plan agent groups separately and merge only conflicting groups
+                    independenceDetection = true;
+                    break;
+                case "-bidir":
+                    // Search from the start and from the goal configuration at once
+                    bidirectional = true;
+                    break;
+                case "-subgoals":
+                    // Solve the goals one at a time in dependency order
+                    subgoals = true;
+                    break;
+                case "-extbfs":
+                    // Breadth-first search with the layers kept in files
+                    externalBFS = true;
+                    break;
+                case "-extdir":
+                    // Directory of the external BFS layer files
+                    ExternalBFS.directory = new File(args[++i]);
+                    break;
+                case "-checkpoint":
+                    // Snapshot file of the graph search
+                    Checkpoint.file = new File(args[++i]);
+                    break;
+                case "-checkpointevery":
+                    // Seconds between snapshots
+                    try
+                    {
+                        Checkpoint.intervalSeconds = Double.parseDouble(args[++i]);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        System.err.println("Couldn't parse -checkpointevery argument as seconds, using default.");
+                    }
+                    break;
+                case "-resume":
+                    // Continue the search from the snapshot given by -checkpoint
+                    Checkpoint.resume = true;
+                    break;
+                case "-cache":
+                    // Directory of the level cache
+                    LevelCache.directory = new File(args[++i]);
+                    break;
+                case "-nocache":
+                    LevelCache.enabled = false;
+                    break;
+                case "-pdb":
+                    // Pattern database heuristic, values combined by "max", or "sum" over the agents
+                    PatternDatabase.combine = i + 1 < args.length && args[i + 1].equalsIgnoreCase("sum") ? "sum"
+                                                                                                        : "max";
+                    if (i + 1 < args.length && !args[i + 1].startsWith("-"))
+                    {
+                        ++i;
+                    }
+                    break;
+                case "-pdbtime":
+                    // Build time limit per pattern database table in seconds
+                    try
+                    {
+                        PatternDatabase.buildSeconds = Double.parseDouble(args[++i]);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        System.err.println("Couldn't parse -pdbtime argument as seconds, using default.");
+                    }
                     break;
-                case "-dfs":
-                    frontier = new FrontierDFS();
+                case "-pdbparallel":
+                    // Build the pattern database tables on several threads
+                    PatternDatabase.parallel = true;
                     break;
-                case "-astar":
-                    frontier = new FrontierBestFirst(new HeuristicAStar(initialState));
+                case "-hcheck":
+                    // Check incremental heuristic values against full evaluation
+                    Heuristic.crossCheck = true;
                     break;
-                case "-wastar":
-                    int w = 5;
-                    if (args.length > 1)
+                case "-heuristic":
+                    // Heuristic of -astar, -wastar and -greedy
+                    String choice = i + 1 < args.length ? Heuristic.parseChoice(args[++i]) : null;
+                    if (choice != null)
+                    {
+                        Heuristic.heuristicChoice = choice;
+                    }
+                    else
                     {
-                        try
-                        {
-                            w = Integer.parseUnsignedInt(args[1]);
-                        }
-                        catch (NumberFormatException e)
-                        {
-                            System.err.println("Couldn't parse weight argument to -wastar as integer, using default.");
-                        }
+                        System.err.println("Unknown -heuristic, options are " + String.join(", ", Heuristic.CHOICES) +
+                                           ". Using " + Heuristic.heuristicChoice + ".");
                     }
-                    frontier = new FrontierBestFirst(new HeuristicWeightedAStar(initialState, w));
                     break;
-                case "-greedy":
-                    frontier = new FrontierBestFirst(new HeuristicGreedy(initialState));
+                case "-beamrestart":
+                    // Retry a failed beam search with a wider beam
+                    BeamSearch.restart = true;
+                    break;
+                case "-deferred":
+                    // Evaluate best-first states when popped, not when generated
+                    deferredEvaluation = true;
+                    break;
+                case "-preferred":
+                    // Deferred evaluation with a second queue for helpful actions
+                    preferredOperators = true;
+                    break;
+                case "-order":
+                    // Order of successors: none, shuffle, heuristic or helpful
+                    String policy = i + 1 < args.length ? SuccessorOrder.parsePolicy(args[++i]) : null;
+                    if (policy != null)
+                    {
+                        SuccessorOrder.policy = policy;
+                    }
+                    else
+                    {
+                        System.err.println("Unknown -order, options are " + String.join(", ", SuccessorOrder.POLICIES) +
+                                           ". Using " + SuccessorOrder.policy + ".");
+                    }
+                    break;
+                case "-seed":
+                    // Seed of -order shuffle
+                    try
+                    {
+                        SuccessorOrder.seed = Long.parseLong(args[++i]);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        System.err.println("Couldn't parse -seed argument as integer, using default.");
+                    }
+                    break;
+                case "-relevance":
+                    // Don't move agents and boxes that no goal depends on
+                    context.relevancePruning = true;
+                    break;
+                case "-macros":
+                    // Push boxes through one cell wide corridors in one step
+                    context.tunnelMacros = true;
+                    break;
+                case "-normalize":
+                    // Single agent levels: compare states by the area the agent can reach
+                    context.reachabilityNormalization = true;
+                    break;
+                case "-sym":
+                    // Merge states that differ only by interchangeable agents
+                    context.symmetryReduction = true;
                     break;
-                default:
-                    frontier = new FrontierBFS();
-                    System.err.println("Defaulting to BFS search. Use arguments -bfs, -dfs, -astar, -wastar, or " +
-                                       "-greedy to set the search strategy.");
             }
         }
-        else
+
+        // Select search strategy.
+        String strategy = args.length > 0 ? args[0].toLowerCase(Locale.ROOT) : "";
+        // The weight of -wastar, the width of -iw and -beam
+        int w = strategy.equals("-iw") ? 2 : strategy.equals("-beam") ? 1000 : 5;
+        if ((strategy.equals("-wastar") || strategy.equals("-iw") || strategy.equals("-beam")) && args.length > 1 &&
+            !args[1].startsWith("-"))
         {
-            frontier = new FrontierBFS();
-            System.err.println("Defaulting to BFS search. Use arguments -bfs, -dfs, -astar, -wastar, or -greedy to " +
-                               "set the search strategy.");
+            try
+            {
+                w = Integer.parseUnsignedInt(args[1]);
+            }
+            catch (NumberFormatException e)
+            {
+                System.err.println("Couldn't parse argument to " + strategy + " as integer, using default.");
+            }
+        }
+
+        if (strategy.equals("-alt") && args.length > 1 && !args[1].startsWith("-"))
+        {
+            // Comma separated heuristics, e.g. "-alt goalcount,manhattan"
+            String[] names = args[1].split(",");
+            String[] choices = new String[names.length];
+            for (int i = 0; i < names.length; i++)
+            {
+                choices[i] = Heuristic.parseChoice(names[i]);
+                if (choices[i] == null)
+                {
+                    System.err.println("Unknown heuristic " + names[i] + " for -alt, using all of them.");
+                    choices = Heuristic.CHOICES;
+                    break;
+                }
+            }
+            alternatingHeuristics = choices;
+        }
+
+        // Popping by the parent's estimate or from the helpful queue breaks A*'s
+        // optimality guarantee
+        if (strategy.equals("-astar") && (deferredEvaluation || preferredOperators))
+        {
+            System.err.println("A* with deferred evaluation isn't optimal, ignoring -deferred and -preferred.");
+            deferredEvaluation = false;
+            preferredOperators = false;
+        }
+
+        // Summed patterns count the actions of each agent separately, while a
+        // joint action moves all of them
+        if (strategy.equals("-astar") && "sum".equals(PatternDatabase.combine) &&
+            initialState.agentRows.length > 1)
+        {
+            System.err.println("-pdb sum isn't admissible with several agents, A* may not find an optimal plan.");
+        }
+
+        // Snapshots are of a single graph search of the whole level
+        boolean plainSearch = !strategy.equals("-cbs") && !strategy.equals("-iw") && !strategy.equals("-beam") &&
+                              !bidirectional && !externalBFS && !subgoals && !independenceDetection;
+        // and a frontier that takes its states back unchanged, which -bfws
+        // doesn't as it scores novelty again
+        if (Checkpoint.isEnabled() && (!plainSearch || context.operatorDecomposition || deferredEvaluation ||
+                                       preferredOperators || strategy.equals("-bfws")))
+        {
+            System.err.println("Checkpoints only work for a plain graph search without -od, -deferred or -bfws, " +
+                               "ignoring -checkpoint.");
+            Checkpoint.file = null;
+            Checkpoint.resume = false;
+        }
+
+        // Searches backwards need every move
+        if (context.relevancePruning && (bidirectional || externalBFS))
+        {
+            System.err.println("Relevance pruning doesn't work with -bidir or -extbfs, ignoring -relevance.");
+            context.relevancePruning = false;
+        }
+        if (context.relevancePruning)
+        {
+            int agents = 0;
+            for (boolean relevant : initialState.level.relevantAgents)
+            {
+                agents += relevant ? 1 : 0;
+            }
+            System.err.format("Relevance pruning: %d of %d agents relevant.\n", agents,
+                              initialState.level.numAgents());
+        }
+
+        // The backward searches and the layer files need the agent's exact cell
+        if (context.reachabilityNormalization &&
+            (bidirectional || externalBFS || initialState.agentRows.length != 1 ||
+             initialState.level.numAgentGoals > 0))
+        {
+            System.err.println("Reachability normalization only works for single agent levels without agent goals, " +
+                               "and not with -bidir or -extbfs, ignoring -normalize.");
+            context.reachabilityNormalization = false;
         }
 
         // Search for a plan.
         Action[][] plan;
         try
         {
-            plan = SearchClient.search(initialState, frontier);
+            while (true)
+            {
+                if (strategy.equals("-cbs") && ConflictBasedSearch.isApplicable(initialState))
+                {
+                    plan = ConflictBasedSearch.search(initialState);
+                    if (plan == null)
+                    {
+                        // CBS can't move boxes, one may be in the way
+                        System.err.println("CBS found no plan with the boxes fixed, using A* instead.");
+                        plan = SearchClient.search(initialState, SearchClient.createFrontier("-astar", w,
+                                                                                             initialState));
+                    }
+                }
+                else if (strategy.equals("-cbs"))
+                {
+                    System.err.println("CBS only handles levels without box goals, using A* instead.");
+                    plan = SearchClient.search(initialState, SearchClient.createFrontier("-astar", w, initialState));
+                }
+                else if (strategy.equals("-iw"))
+                {
+                    plan = WidthSearch.search(initialState, w);
+                }
+                else if (strategy.equals("-beam"))
+                {
+                    plan = BeamSearch.search(initialState, w);
+                }
+                else if (bidirectional)
+                {
+                    plan = BidirectionalSearch.search(initialState);
+                }
+                else if (externalBFS)
+                {
+                    plan = ExternalBFS.search(initialState);
+                }
+                else if (subgoals)
+                {
+                    plan = SubgoalPlanner.search(initialState, strategy, w);
+                }
+                else if (independenceDetection)
+                {
+                    plan = IndependenceDetection.search(initialState, strategy, w);
+                }
+                else
+                {
+                    plan = SearchClient.search(initialState, SearchClient.createFrontier(strategy, w, initialState));
+                }
+
+                // The pruned search is incomplete, a failed one is run again in full
+                if (plan != null || !context.relevancePruning)
+                {
+                    break;
+                }
+                System.err.println("No plan found with relevance pruning, searching again without it.");
+                TrailStore trail = context.trail;
+                context = context.copy();
+                context.relevancePruning = false;
+                context.trail = trail != null ? new TrailStore(initialState.agentRows.length) : null;
+                initialState = initialState.withContext(context);
+            }
         }
         catch (OutOfMemoryError ex)
         {
             System.err.println("Maximum memory usage exceeded.");
             plan = null;
         }
-
         // Print plan to server.
         if (plan == null)
         {
@@ -0,0 +1,87 @@
+package searchclient;
+
+/*
+ * Settings and storage of one search, shared by all of its states (see
+ * State.context), the way the Level is shared for the layout. Each search
+ * carries its own context, so searches run in parallel in one process don't
+ * interfere, and a planner that needs other settings for a sub-search gives it
+ * a copy instead of changing anything global.
+ *
+ * The flags are set from the command line on the context of the parsed level,
+ * and only changed before a search starts.
+ */
+public class SearchContext
+{
+    /*
+     * Compact search tree used for plan extraction instead of parent pointers.
+     * When set, newly generated states record themselves here and leave parent
+     * and jointAction null. Enabled with -trail, or by GraphSearch when the heap
+     * crosses the soft watermark.
+     */
+    public TrailStore trail = null;
+
+    /*
+     * Operator decomposition (-od): instead of generating every joint action at
+     * once, agents are assigned their action one at a time. A full state is
+     * expanded into intermediate states that carry the actions chosen so far for
+     * agents 0..k-1; only when the last agent is assigned is the joint action
+     * applied, giving the next full state. The branching factor per node is thus
+     * that of a single agent instead of the product over all agents.
+     */
+    public boolean operatorDecomposition = false;
+
+    /*
+     * Symmetry reduction (-sym). Agents of the same color without an agent goal
+     * can take over each other's work, so states that only differ by a
+     * permutation of such agents are treated as equal. Boxes of the same letter
+     * are already interchangeable since the boxes grid only stores letters.
+     * Also enables commutativity pruning, see State.commutesWithParent.
+     */
+    public boolean symmetryReduction = false;
+
+    /*
+     * Tunnel macros (-macros, single agent levels). When the agent pushes a box
+     * straight along a corridor that is one cell wide, it can only keep pushing
+     * or walk away and leave the corridor blocked, so the box is pushed on until
+     * it leaves the corridor or reaches a goal. The pushes in between are real
+     * states chained by parent pointers, so extractPlan still returns every
+     * single action, but only the last state of the chain is a successor.
+     */
+    public boolean tunnelMacros = false;
+
+    /*
+     * Relevance pruning (-relevance). Drops moves that cannot help reach a goal:
+     * of agents that have no goal left to work on (see State.activeAgents), and
+     * of boxes that have no goal at all. It is incomplete, as an irrelevant box or
+     * agent can be in the way, so a search that fails with it is run again
+     * without.
+     */
+    public boolean relevancePruning = false;
+
+    /*
+     * Reachability normalization (-normalize, single agent levels without agent
+     * goals). Where the agent stands within the area it can walk to makes no
+     * difference to what it can do next, so states are compared by their boxes
+     * and the top-left cell of that area (see State.normalCell), and the
+     * successors of a state are its pushes and pulls from every cell the agent
+     * can reach. The walk to the cell a push or pull starts from is not part of
+     * the search tree: the successor's g counts its moves, and they are found
+     * again by State.walkTo when the plan is extracted or the state is recorded
+     * in the trail store.
+     */
+    public boolean reachabilityNormalization = false;
+
+    /*
+     * A context with the same flags and no trail store, for a search of its own.
+     */
+    public SearchContext copy()
+    {
+        SearchContext copy = new SearchContext();
+        copy.operatorDecomposition = this.operatorDecomposition;
+        copy.symmetryReduction = this.symmetryReduction;
+        copy.tunnelMacros = this.tunnelMacros;
+        copy.relevancePruning = this.relevancePruning;
+        copy.reachabilityNormalization = this.reachabilityNormalization;
+        return copy;
+    }
+}
@@ -2,95 +2,110 @@ package searchclient;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Random;
 
 
 
 public class State
 {
-    private static final Random RNG = new Random(1);
-
     /*
      * Prints debugging messages if true.
      */
     public static boolean DEBUG = false;
 
     /*
-        The agent rows, columns, and colors are indexed by the agent number.
+     * The static layout of the level (walls, goals, colors), shared by all
+     * states of a search.
+     */
+    public final Level level;
+
+    /*
+     * The settings and trail store of the search this state belongs to, shared
+     * by all of its states.
+     */
+    public final SearchContext context;
+
+    /*
+        The agent rows and columns are indexed by the agent number.
         For example, this.agentRows[0] is the row location of agent '0'.
     */
     public int[] agentRows;
     public int[] agentCols;
-    public static Color[] agentColors;
 
     /*
-        The walls, boxes, and goals arrays are indexed from the top-left of the level, row-major order (row, col).
+        The boxes array is indexed from the top-left of the level, row-major order (row, col).
                Col 0  Col 1  Col 2  Col 3
         Row 0: (0,0)  (0,1)  (0,2)  (0,3)  ...
         Row 1: (1,0)  (1,1)  (1,2)  (1,3)  ...
         Row 2: (2,0)  (2,1)  (2,2)  (2,3)  ...
         ...
 
-        For example, this.walls[2] is an array of booleans for the third row.
-        this.walls[row][col] is true if there's a wall at (row, col).
-
-        this.boxes and this.char are two-dimensional arrays of chars. 
+        this.boxes is a two-dimensional array of chars.
         this.boxes[1][2]='A' means there is an A box at (1,2). 
         If there is no box at (1,2), we have this.boxes[1][2]=0 (null character).
-        Simiarly for goals. 
-
+        The walls and goals are in this.level, indexed the same way.
     */
-    public static boolean[][] walls;
     public char[][] boxes;
-    public static char[][] goals;
-
-    // Total number of goals in level
-    public static int numGoals;
-
-    // Total number of goals in level
-    public static int numAgents;
-
-    /*
-     * Array containing x/y coordinates of every goal in the level. Look up
-     * coordinates of a goal with: goalCoords[goalNum][0 for y-coordinate, 1 for x-coordinate];
-     */
-    public static int[][] goalCoords;
-
-    /*
-        The box colors are indexed alphabetically. So this.boxColors[0] is the color of A boxes, 
-        this.boxColor[1] is the color of B boxes, etc.
-    */
-    public static Color[] boxColors;
  
     public final State parent;
     public final Action[] jointAction;
     private final int g;
 
+    // For intermediate states of operator decomposition: the full state that the
+    // partial joint action will be applied to, and the actions chosen so far.
+    // Applicability and conflicts are always checked against the base. Both are
+    // null for full states.
+    private final State base;
+    private final Action[] partialAction;
+
+    // Id of this state in the trail store, or -1 if it is not recorded (yet).
+    private int trailId = -1;
+
+    // Number of goals not covered by their box or agent. Counted once for root
+    // states and carried over from the parent, adjusted for the objects moved.
+    private int unsatisfiedGoals;
+
+    // Agent cells with interchangeable agents sorted within their class, only
+    // computed under symmetry reduction.
+    private int[] canonicalCells = null;
+
+    // Top-left cell the agent can walk to, only computed under reachability
+    // normalization.
+    private int normalCell = -1;
+
     private int hash = 0;
 
-    // Constructs an initial state.
+    // Heuristic value and the sum of distance terms it was computed from, cached
+    // by the heuristic that evaluated this state (hOwner, null if none did).
+    // There is room for one heuristic only, to keep states small: when several
+    // evaluate the same states (-alt), each one overwrites the cache of the one
+    // before, and the others evaluate from scratch.
+    Heuristic hOwner = null;
+    int hSum;
+    int hValue;
+
+    // Constructs an initial state of a new level with the given layout.
     // Arguments are not copied, and therefore should not be modified after being passed in.
     public State(int[] agentRows, int[] agentCols, Color[] agentColors, boolean[][] walls,
                  char[][] boxes, Color[] boxColors, char[][] goals
     )
     {
-        this.agentRows = agentRows;
-        this.agentCols = agentCols;
-        this.agentColors = agentColors;
-        this.walls = walls;
-        this.boxes = boxes;
-        this.boxColors = boxColors;
-        this.goals = goals;
-        this.parent = null;
-        this.jointAction = null;
-        this.g = 0;
+        this(new Level(agentColors, walls, boxColors, goals), agentRows, agentCols, boxes);
+    }
+
+    // Constructs an initial state of the given level, with a search context of
+    // its own.
+    // Arguments are not copied, and therefore should not be modified after being passed in.
+    public State(Level level, int[] agentRows, int[] agentCols, char[][] boxes)
+    {
+        this(level, agentRows, agentCols, boxes, new SearchContext());
+    }
 
-        // Calculates number of goals in level and gets their coordinates
-        numGoals = calculateNumGoals();
-        numAgents = calculateNumAgents();
-        goalCoords = new int[numGoals][2];
-        getGoalCoords();
+    // Constructs an initial state of the given level for a search with the given
+    // context.
+    // Arguments are not copied, and therefore should not be modified after being passed in.
+    public State(Level level, int[] agentRows, int[] agentCols, char[][] boxes, SearchContext context)
+    {
+        this(level, agentRows, agentCols, boxes, context, 0, -1);
     }
 
 
@@ -98,6 +113,16 @@ public class State
     // Precondition: Joint action must be applicable and non-conflicting in parent state.
     private State(State parent, Action[] jointAction)
     {
+        this(parent, jointAction, 0, 0, 0);
+    }
+
+    // Constructs the state resulting from agent 0 walking to (walkRow, walkCol) in
+    // walkLength moves and then carrying out jointAction, for reachability
+    // normalization. A walkLength of 0 means no walk.
+    private State(State parent, Action[] jointAction, int walkRow, int walkCol, int walkLength)
+    {
+        this.level = parent.level;
+        this.context = parent.context;
         // Copy parent
         this.agentRows = Arrays.copyOf(parent.agentRows, parent.agentRows.length);
         this.agentCols = Arrays.copyOf(parent.agentCols, parent.agentCols.length);
@@ -108,15 +133,47 @@ public class State
         }
 
         // Set own parameters
-        this.parent = parent;
-        this.jointAction = Arrays.copyOf(jointAction, jointAction.length);
-        this.g = parent.g + 1;
+        if (this.context.trail == null)
+        {
+            this.parent = parent;
+            this.jointAction = Arrays.copyOf(jointAction, jointAction.length);
+        }
+        else
+        {
+            this.parent = null;
+            this.jointAction = null;
+            int parentId = parent.trailId();
+            if (walkLength > 0)
+            {
+                parentId = parent.recordWalk(parentId, walkRow, walkCol);
+            }
+            this.trailId = this.context.trail.add(parentId, jointAction);
+        }
+        this.g = parent.g + walkLength + 1;
+        this.base = null;
+        this.partialAction = null;
+        this.unsatisfiedGoals = parent.unsatisfiedGoals;
+
+        if (walkLength > 0)
+        {
+            this.agentRows[0] = walkRow;
+            this.agentCols[0] = walkCol;
+            this.moved('0', parent.agentRows[0], parent.agentCols[0], walkRow, walkCol);
+        }
 
         // DEBUG
         // System.err.println("Before update:");
         // printBoxes();
 
         // Apply each action
+        this.applyActions(jointAction);
+    }
+
+    /*
+     * Applies the actions of jointAction to this state's agent and box arrays.
+     */
+    private void applyActions(Action[] jointAction)
+    {
         int numAgents = this.agentRows.length;
         for (int agent = 0; agent < numAgents; ++agent)
         {
@@ -133,6 +190,7 @@ public class State
                 case Move:
                     this.agentRows[agent] += action.agentRowDelta;
                     this.agentCols[agent] += action.agentColDelta;
+                    this.moved((char) ('0' + agent), agentRow, agentCol, this.agentRows[agent], this.agentCols[agent]);
                     break;
 
                 case Pull:
@@ -153,6 +211,9 @@ public class State
                     this.boxes[boxCurrentRow][boxCurrentCol] = '\0';
                     this.boxes[boxDestinationRow][boxDestinationCol] = box;
 
+                    this.moved((char) ('0' + agent), agentRow, agentCol, this.agentRows[agent], this.agentCols[agent]);
+                    this.moved(box, boxCurrentRow, boxCurrentCol, boxDestinationRow, boxDestinationCol);
+
                     break;
 
                 case Push:
@@ -173,6 +234,9 @@ public class State
                     this.boxes[boxCurrentRow2][boxCurrentCol2] = '\0';
                     this.boxes[boxDestinationRow2][boxDestinationCol2] = box;
 
+                    this.moved((char) ('0' + agent), agentRow, agentCol, this.agentRows[agent], this.agentCols[agent]);
+                    this.moved(box, boxCurrentRow2, boxCurrentCol2, boxDestinationRow2, boxDestinationCol2);
+
                     break;
             }
 
@@ -182,6 +246,115 @@ public class State
         }
     }
 
+    /*
+     * Updates the unsatisfied goal count for an object (box letter or agent
+     * digit) that moved between two cells.
+     */
+    private void moved(char object, int fromRow, int fromCol, int toRow, int toCol)
+    {
+        char[][] goals = this.level.goals;
+        if (goals[fromRow][fromCol] == object)
+        {
+            ++this.unsatisfiedGoals;
+        }
+        if (goals[toRow][toCol] == object)
+        {
+            --this.unsatisfiedGoals;
+        }
+    }
+
+    /*
+     * Counts the goals not covered by their box or agent from scratch.
+     */
+    private int countUnsatisfiedGoals()
+    {
+        int count = 0;
+        for (int[] coords : this.level.goalCoords)
+        {
+            int row = coords[1];
+            int col = coords[0];
+            char goal = this.level.goals[row][col];
+            if ('A' <= goal && goal <= 'Z' ? this.boxes[row][col] != goal
+                                           : this.agentRows[goal - '0'] != row || this.agentCols[goal - '0'] != col)
+            {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // Constructs an intermediate state of operator decomposition: base with the
+    // actions in partialAction chosen for the first numAssigned agents. The agent
+    // and box arrays show the assigned actions already carried out, so that the
+    // heuristic sees the progress of the assigned agents.
+    private State(State base, Action[] partialAction, int numAssigned)
+    {
+        this.level = base.level;
+        this.context = base.context;
+        this.agentRows = Arrays.copyOf(base.agentRows, base.agentRows.length);
+        this.agentCols = Arrays.copyOf(base.agentCols, base.agentCols.length);
+        this.boxes = new char[base.boxes.length][];
+        for (int i = 0; i < base.boxes.length; i++)
+        {
+            this.boxes[i] = Arrays.copyOf(base.boxes[i], base.boxes[i].length);
+        }
+        this.unsatisfiedGoals = base.unsatisfiedGoals;
+        this.applyActions(partialAction);
+        this.parent = null;
+        this.jointAction = null;
+        this.g = base.g;
+        this.base = base;
+        this.partialAction = Arrays.copyOf(partialAction, numAssigned);
+    }
+
+    // Constructs a state of the level with the given agent and box positions, as
+    // the root of a search, or as a search node whose ancestry is node trailId of
+    // the trail store. Used as a goal configuration by backward search and for
+    // the frontier of a resumed search.
+    private State(Level level, int[] agentRows, int[] agentCols, char[][] boxes, SearchContext context, int g,
+                  int trailId)
+    {
+        this.level = level;
+        this.context = context;
+        this.agentRows = agentRows;
+        this.agentCols = agentCols;
+        this.boxes = boxes;
+        this.parent = null;
+        this.jointAction = null;
+        this.g = g;
+        this.base = null;
+        this.partialAction = null;
+        this.trailId = trailId;
+        this.unsatisfiedGoals = this.countUnsatisfiedGoals();
+    }
+
+    /*
+     * Returns a root state of the level with the given agent and box positions,
+     * for the search with the given context. Arguments are not copied.
+     */
+    static State relocated(Level level, int[] agentRows, int[] agentCols, char[][] boxes, SearchContext context)
+    {
+        return new State(level, agentRows, agentCols, boxes, context, 0, -1);
+    }
+
+    /*
+     * Returns a state at depth g whose plan is node trailId of the trail store.
+     */
+    static State restored(State state, int g, int trailId)
+    {
+        return new State(state.level, state.agentRows, state.agentCols, state.boxes, state.context, g, trailId);
+    }
+
+    /*
+     * Returns a root state with the positions of this state, for a search with
+     * the given context. Searches that need other settings than their caller's
+     * start from the initial state moved into a copy of its context.
+     */
+    public State withContext(SearchContext context)
+    {
+        return new State(this.level, this.agentRows, this.agentCols, this.boxes, context, 0, -1);
+    }
+
     /*
      * Helper debugging method to print the boxes array. No longer used
      */
@@ -210,160 +383,46 @@ public class State
 
     /*
      * Gets the number of goals that are not yet covered by their correct agents.
-     * Used for Question 2 goal count heuristic.
+     * Used for Question 2 goal count heuristic. Kept up to date as states are
+     * generated, so this is constant time.
      */
     public int getGoalCount() {
-
-        //System.err.println("----Counting goals----");
-        //System.err.println(this);
-
-        // agentRows is an array of each agent's row position (agents identified numerically)
-        int numAgents = agentRows.length;
-        int goalCount = 0;
-
-        // // Calculates the number of agents at their correct goal
-        for (int agentNum = 0; agentNum < numAgents; agentNum++) {
-            // If selected goal has same row and col as agent
-            int agentX = agentRows[agentNum];
-            int agentY = agentCols[agentNum];
-
-            // Get numerical goal ID by converting from ASCII
-            int goalNum = (int) goals[agentX][agentY] - 48;
-
-            if (goalNum == agentNum) {
-                System.err.println("Counted agent goal " + agentNum);
-                goalCount++;
-            }
-        }
-
-        // Calculates the number of goals with a correct box - Exercise 6.1
-        for (int i = 0; i < numGoals; i++) {
-            int goalX = goalCoords[i][1];
-            int goalY = goalCoords[i][0];
-
-            if (goals[goalX][goalY] != '\0') {
-                if (goals[goalX][goalY] == boxes[goalX][goalY]) {
-                    //System.err.println(" Counted box goals[" + goalX +"][" + goalY + "] = " + goals[goalX][goalY] + ".");
-                    //System.err.println(this);
-
-                    goalCount++;
-                }
-            } 
-            
-        }
-
-        // Returns number of goals not yet covered by their correct agent
-        return (numGoals - goalCount);
-    }
-
-    /*
-     * Returns the total number of goals in this level. Private helper method called
-     * when State is constructed.
-     */
-    private int calculateNumGoals() {
-        int numGoals = 0;
-
-        // Iterate through goals array and count any listing that is not blank as a goal
-        for (int i = 0; i < goals.length; i++) {
-            for (int j = 0; j < goals[i].length; j++) {
-                if (goals[i][j] != '\0') {
-                    numGoals++;
-                }
-            }
-        }
-        System.err.println("Total num goals: " + numGoals);
-        return numGoals;
-    }
-
-    private int calculateNumAgents() {
-        int numAgents = 0;
-
-        // Iterate through goals array and count any listing that is an integer between 0 - 9
-        for (int i = 0; i < goals.length; i++) {
-            for (int j = 0; j < goals[i].length; j++) {
-                if (goals[i][j] != '\0' && ((int) goals[i][j] - 48) < 10) {
-                    numAgents++;
-                }
-            }
-        }
-        System.err.println("Total num agents: " + numAgents);
-        return numAgents;
+        return this.unsatisfiedGoals;
     }
 
     /*
      * Returns the total number of agents with goals in this level.
      */
     public int getNumAgents() {
-        return this.numAgents;
-    }
-
-    /*
-     * Calculates 2D array of x/y coordinates for all goals in level. Updates
-     * `goalCoords` class variable. Private helper method called only when
-     * State is first constructed.
-     */
-    private void getGoalCoords() {
-        int x, y;
-        int k = 0;
-
-         // Iterate through goals array and count any listing that is not blank as a goal
-         for (int i = 0; i < goals.length; i++) {
-            for (int j = 0; j < goals[i].length; j++) {
-        
-                if (goals[i][j] != '\0') {
-                    x = i;
-                    y = j;
-
-                    goalCoords[k][0] = y;
-                    goalCoords[k][1] = x;
-                    k++;
-
-                    if (DEBUG) {
-                        System.err.println("Goal counted: (" + x + ", " + y + ") ");
-                        printGoalCoords();
-                    }
-
-                }
-            }
-        }
-    }
-
-    /*
-     * Prints out the goalCoords array
-     */
-    private void printGoalCoords() {
-        for (int i = 0; i < goalCoords.length; i++) {
-            System.err.println(i + ": [" + goalCoords[i][0] +", " + goalCoords[i][1] + "]");
-        }
+        return this.level.numAgentGoals;
     }
 
     /*
      * Returns the total number of goals in this level.
      */
     public int getNumGoals() {
-        return this.numGoals;
+        return this.level.numGoals;
     }
 
     public boolean isGoalState()
     {
-        for (int row = 1; row < this.goals.length - 1; row++)
+        if (DEBUG && this.unsatisfiedGoals != this.countUnsatisfiedGoals())
         {
-            for (int col = 1; col < this.goals[row].length - 1; col++)
-            {
-                char goal = this.goals[row][col];
-
-                if ('A' <= goal && goal <= 'Z' && this.boxes[row][col] != goal)
-                {
-                    return false;
-                }
-                else if ('0' <= goal && goal <= '9' &&
-                         !(this.agentRows[goal - '0'] == row && this.agentCols[goal - '0'] == col))
-                {
-                    return false;
-                }
-            }
+            throw new IllegalStateException("Unsatisfied goal count out of sync in state:\n" + this);
         }
-        return true;
+        return this.base == null && this.unsatisfiedGoals == 0;
+    }
+
+    /*
+     * Intermediate states of operator decomposition are identified by their base
+     * and the actions assigned so far, and each is generated exactly once, by the
+     * expansion of its base or of the intermediate state one action shorter. As
+     * in Standley's formulation, they are kept out of the closed set and never
+     * checked for duplicates; only full states are.
+     */
+    public boolean isIntermediate()
+    {
+        return this.base != null;
     }
 
     public ArrayList<State> getExpandedStates()
@@ -373,15 +432,24 @@ public class State
         }
 
         int numAgents = this.agentRows.length;
+        if (this.context.operatorDecomposition && numAgents > 1)
+        {
+            return this.getDecomposedStates();
+        }
+        if (this.isNormalized())
+        {
+            return this.getNormalizedStates();
+        }
 
         // Determine list of applicable actions for each individual agent.
+        boolean[] active = this.context.relevancePruning ? this.activeAgents() : null;
         Action[][] applicableActions = new Action[numAgents][];
         for (int agent = 0; agent < numAgents; ++agent)
         {
             ArrayList<Action> agentActions = new ArrayList<>(Action.values().length);
             for (Action action : Action.values())
             {
-                if (this.isApplicable(agent, action))
+                if (this.isApplicable(agent, action) && (active == null || this.isRelevant(agent, action, active)))
                 {
                     if (DEBUG) {
                         System.err.println("Added " + action.name());
@@ -393,6 +461,9 @@ public class State
         }
 
         // Iterate over joint actions, check conflict and generate child states.
+        // Conflict checks are skipped altogether when no two agents are close.
+        boolean mayInteract = this.agentsMayInteract();
+        boolean commutes = this.context.symmetryReduction && this.parent != null && numAgents > 1;
         Action[] jointAction = new Action[numAgents];
         int[] actionsPermutation = new int[numAgents];
         ArrayList<State> expandedStates = new ArrayList<>(16);
@@ -403,9 +474,15 @@ public class State
                 jointAction[agent] = applicableActions[agent][actionsPermutation[agent]];
             }
 
-            if (!this.isConflicting(jointAction))
+            if ((!mayInteract || !this.isConflicting(jointAction)) &&
+                !(commutes && this.commutesWithParent(jointAction)))
             {
-                expandedStates.add(new State(this, jointAction));
+                State child = new State(this, jointAction);
+                if (this.context.tunnelMacros && numAgents == 1)
+                {
+                    child = child.pushThroughTunnel(jointAction);
+                }
+                expandedStates.add(child);
             }
 
             // Advance permutation
@@ -434,68 +511,524 @@ public class State
             }
         }
 
-        Collections.shuffle(expandedStates, State.RNG);
         return expandedStates;
     }
 
-    private boolean isApplicable(int agent, Action action)
+    /*
+     * Successors under operator decomposition: assigns an action to the next
+     * unassigned agent. Conflicts are checked among the agents assigned so far
+     * (the rest count as NoOp), which gives the same result as checking the
+     * complete joint action since conflicts are between pairs of agents.
+     */
+    private ArrayList<State> getDecomposedStates()
     {
-        if (DEBUG) {
-            System.err.println("-------- Checking action " + action.name + "------------");
-        }
+        State base = this.base == null ? this : this.base;
+        int numAgents = base.agentRows.length;
+        int agent = this.partialAction == null ? 0 : this.partialAction.length;
 
-        int agentRow = this.agentRows[agent];
-        int agentCol = this.agentCols[agent];
-        Color agentColor = this.agentColors[agent];
-        Color boxColor;
-        int boxRow;
-        int boxCol;
-        char box;
-        int destinationRow;
-        int destinationCol;
-        switch (action.type)
+        Action[] jointAction = new Action[numAgents];
+        Arrays.fill(jointAction, Action.NoOp);
+        for (int i = 0; i < agent; ++i)
         {
-            case NoOp:
-                return true;
-
-            case Move:
-                destinationRow = agentRow + action.agentRowDelta;
-                destinationCol = agentCol + action.agentColDelta;
-                return this.cellIsFree(destinationRow, destinationCol);
+            jointAction[i] = this.partialAction[i];
+        }
 
-               
-            case Pull:
-                // A pull is appliccable if the cell in the direction the agent is moving is free
-                // AND the cell in the direction opposite where the agent is moving contains a box
-                // of the same color as the agent.
+        boolean mayInteract = base.agentsMayInteract();
+        boolean[] active = this.context.relevancePruning ? base.activeAgents() : null;
+        ArrayList<State> expandedStates = new ArrayList<>(16);
+        for (Action action : Action.values())
+        {
+            if (!base.isApplicable(agent, action) || (active != null && !base.isRelevant(agent, action, active)))
+            {
+                continue;
+            }
 
-                // Get current box position
-                boxRow = agentRow - action.boxRowDelta;
-                boxCol = agentCol - action.boxColDelta;
+            jointAction[agent] = action;
+            if (mayInteract && base.isConflicting(jointAction))
+            {
+                continue;
+            }
 
-                // Get agent destination position
-                destinationRow = agentRow + action.agentRowDelta;
-                destinationCol = agentCol + action.agentColDelta;
+            if (agent == numAgents - 1)
+            {
+                expandedStates.add(new State(base, jointAction));
+            }
+            else
+            {
+                expandedStates.add(new State(base, jointAction, agent + 1));
+            }
+        }
 
-                box = this.boxes[boxRow][boxCol];
+        return expandedStates;
+    }
 
-                // Check that agent is moving into an empty cell
-                Boolean agentCellIsFree = this.cellIsFree(destinationRow, destinationCol);
+    /*
+     * Successors under reachability normalization: every push and pull the agent
+     * can carry out after walking to some cell it can reach, closest cells first.
+     */
+    private ArrayList<State> getNormalizedStates()
+    {
+        ReachBuffer buffer = reachBuffer.get();
+        int reached = this.floodFill(buffer, -1);
+        int numCols = this.level.numCols;
+
+        // The two smallest cells of the area, for the normal cells of the successors
+        int first = Integer.MAX_VALUE;
+        int second = Integer.MAX_VALUE;
+        for (int i = 0; i < reached; ++i)
+        {
+            int cell = buffer.cells[i];
+            if (cell < first)
+            {
+                second = first;
+                first = cell;
+            }
+            else if (cell < second)
+            {
+                second = cell;
+            }
+        }
+        this.normalCell = first;
 
-                if (DEBUG) {
-                    System.err.println("Agent at ( " + agentRow + ", " + agentCol + ")");
-                    System.err.println("Agent destination cell is free: " + agentCellIsFree);
+        Action[] jointAction = new Action[1];
+        ArrayList<State> expandedStates = new ArrayList<>(16);
+        for (int i = 0; i < reached; ++i)
+        {
+            int cell = buffer.cells[i];
+            int row = cell / numCols;
+            int col = cell % numCols;
+            for (Action action : ACTIONS)
+            {
+                if (!this.movesBoxFrom(row, col, action))
+                {
+                    continue;
+                }
+                jointAction[0] = action;
+                State child = new State(this, jointAction, row, col, buffer.distances[cell]);
+                child.normalCell = this.normalCellAfter(buffer, row, col, action, first, second);
+                if (this.context.tunnelMacros)
+                {
+                    child = child.pushThroughTunnel(jointAction);
                 }
+                expandedStates.add(child);
+            }
+        }
+        return expandedStates;
+    }
 
-                Boolean boxInCell = false;
-                Boolean colorsMatch = false;
+    /*
+     * The normal cell of the successor reached by action from (row, col), found
+     * from this state's area as left in buffer by floodFill, whose two smallest
+     * cells are first and second, instead of filling the successor's area anew.
+     * The box leaves cell `from` for cell `to`, which changes the area only
+     * locally as long as `to` does not cut it in two and `from` borders no other
+     * area. Returns -1 when that is not the case.
+     */
+    private int normalCellAfter(ReachBuffer buffer, int row, int col, Action action, int first, int second)
+    {
+        int numCols = this.level.numCols;
+        int from;
+        int to;
+        if (action.type == ActionType.Push)
+        {
+            from = (row + action.agentRowDelta) * numCols + col + action.agentColDelta;
+            to = from + action.boxRowDelta * numCols + action.boxColDelta;
+        }
+        else
+        {
+            from = (row - action.boxRowDelta) * numCols + col - action.boxColDelta;
+            to = row * numCols + col;
+        }
 
-                // Check that a box in the right position exists and has the right color
-                if (box != '\0') {
+        // The area loses `to`
+        int normal = first;
+        if (buffer.reached[to] == buffer.stamp)
+        {
+            if (this.cutsArea(to, from))
+            {
+                return -1;
+            }
+            normal = to == first ? second : first;
+        }
+
+        // and gains `from` if it borders the area
+        boolean joins = false;
+        for (Action move : MOVES)
+        {
+            int next = from + move.agentRowDelta * numCols + move.agentColDelta;
+            if (next == to || !this.isOpen(next))
+            {
+                continue;
+            }
+            if (buffer.reached[next] != buffer.stamp)
+            {
+                return -1;
+            }
+            joins = true;
+        }
+        return joins ? Math.min(normal, from) : normal;
+    }
+
+    /*
+     * Whether a box moving from cell `from` to cell `cell` might cut the free
+     * cells around it in two. It does not if the free cells of the eight around
+     * it that share a side with it are joined by free cells of the eight.
+     */
+    private boolean cutsArea(int cell, int from)
+    {
+        int numCols = this.level.numCols;
+        int[] ring = {-numCols, -numCols + 1, 1, numCols + 1, numCols, numCols - 1, -1, -numCols - 1};
+        int start = -1;
+        for (int i = 0; i < 8 && start < 0; ++i)
+        {
+            int next = cell + ring[i];
+            start = next != from && !this.isOpen(next) ? i : -1;
+        }
+        if (start < 0)
+        {
+            return false;
+        }
+
+        // Runs of free cells around the ring that hold a cell sharing a side
+        int runs = 0;
+        boolean side = false;
+        for (int i = 1; i <= 8; ++i)
+        {
+            int k = (start + i) % 8;
+            int next = cell + ring[k];
+            if (next == from || this.isOpen(next))
+            {
+                side |= k % 2 == 0;
+            }
+            else
+            {
+                runs += side ? 1 : 0;
+                side = false;
+            }
+        }
+        return runs > 1;
+    }
+
+    // Whether cell (row * numCols + col) holds neither a wall nor a box
+    private boolean isOpen(int cell)
+    {
+        int row = cell / this.level.numCols;
+        int col = cell % this.level.numCols;
+        return !this.level.walls[row][col] && this.boxes[row][col] == 0;
+    }
+
+    /*
+     * Whether agent 0 can push or pull a box with action when standing at
+     * (row, col), a cell it can walk to. Its own cell is then free.
+     */
+    private boolean movesBoxFrom(int row, int col, Action action)
+    {
+        int boxRow;
+        int boxCol;
+        int destinationRow;
+        int destinationCol;
+        switch (action.type)
+        {
+            case Push:
+                boxRow = row + action.agentRowDelta;
+                boxCol = col + action.agentColDelta;
+                destinationRow = boxRow + action.boxRowDelta;
+                destinationCol = boxCol + action.boxColDelta;
+                break;
+
+            case Pull:
+                boxRow = row - action.boxRowDelta;
+                boxCol = col - action.boxColDelta;
+                destinationRow = row + action.agentRowDelta;
+                destinationCol = col + action.agentColDelta;
+                break;
+
+            default:
+                return false;
+        }
+
+        char box = this.boxes[boxRow][boxCol];
+        return box != 0 && this.level.boxColors[box - 'A'] == this.level.agentColors[0] &&
+               (!this.context.relevancePruning || this.level.relevantLetters[box - 'A']) &&
+               !this.level.walls[destinationRow][destinationCol] && this.boxes[destinationRow][destinationCol] == 0;
+    }
+
+    /*
+     * Tunnel macro: keeps repeating a straight push for as long as both the agent
+     * and the box are inside a corridor along the push direction, the push is
+     * applicable, and neither stands on a goal. Returns the last state reached.
+     */
+    private State pushThroughTunnel(Action[] jointAction)
+    {
+        Action action = jointAction[0];
+        if (action.type != ActionType.Push ||
+            action.boxRowDelta != action.agentRowDelta || action.boxColDelta != action.agentColDelta)
+        {
+            return this;
+        }
+        boolean[][] tunnels = action.agentRowDelta != 0 ? this.level.verticalTunnels : this.level.horizontalTunnels;
+        char[][] goals = this.level.goals;
+
+        State state = this;
+        while (true)
+        {
+            int agentRow = state.agentRows[0];
+            int agentCol = state.agentCols[0];
+            int boxRow = agentRow + action.agentRowDelta;
+            int boxCol = agentCol + action.agentColDelta;
+            if (!tunnels[agentRow][agentCol] || !tunnels[boxRow][boxCol] ||
+                goals[agentRow][agentCol] != 0 || goals[boxRow][boxCol] != 0 ||
+                !state.isApplicable(0, action))
+            {
+                return state;
+            }
+            state = new State(state, jointAction);
+        }
+    }
+
+    /*
+     * Predecessors for backward search: every state P with a joint action that
+     * leads from P to this state. Each returned state has this state as parent and
+     * the reversed joint action (see Action.reverse) as jointAction, so carrying
+     * out the reverse of each action of the chain walks forward towards the root.
+     *
+     * Candidates are found by carrying out reversed actions from this state, and
+     * are kept only if the forward joint action is applicable and non-conflicting
+     * in them and leads back to this state.
+     */
+    ArrayList<State> getPredecessorStates()
+    {
+        int numAgents = this.agentRows.length;
+
+        Action[][] reversibleActions = new Action[numAgents][];
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            ArrayList<Action> agentActions = new ArrayList<>(Action.values().length);
+            for (Action action : Action.values())
+            {
+                if (this.isApplicable(agent, action))
+                {
+                    agentActions.add(action);
+                }
+            }
+            reversibleActions[agent] = agentActions.toArray(new Action[0]);
+        }
+
+        Action[] reverseAction = new Action[numAgents];
+        Action[] forwardAction = new Action[numAgents];
+        int[] actionsPermutation = new int[numAgents];
+        ArrayList<State> predecessors = new ArrayList<>(16);
+        while (true)
+        {
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                reverseAction[agent] = reversibleActions[agent][actionsPermutation[agent]];
+                forwardAction[agent] = reverseAction[agent].reverse();
+            }
+
+            if (!this.isConflicting(reverseAction))
+            {
+                State predecessor = new State(this, reverseAction);
+                boolean valid = !predecessor.isConflicting(forwardAction);
+                for (int agent = 0; agent < numAgents && valid; ++agent)
+                {
+                    valid = predecessor.isApplicable(agent, forwardAction[agent]);
+                }
+                if (valid && this.equals(predecessor.apply(forwardAction)))
+                {
+                    predecessors.add(predecessor);
+                }
+            }
+
+            // Advance permutation
+            boolean done = false;
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                if (actionsPermutation[agent] < reversibleActions[agent].length - 1)
+                {
+                    ++actionsPermutation[agent];
+                    break;
+                }
+                else
+                {
+                    actionsPermutation[agent] = 0;
+                    if (agent == numAgents - 1)
+                    {
+                        done = true;
+                    }
+                }
+            }
+
+            if (done)
+            {
+                break;
+            }
+        }
+
+        return predecessors;
+    }
+
+    /*
+     * Commutativity pruning. If the agents acting in jointAction are idle in the
+     * action that led to this state, and could already have done the same actions
+     * alongside it in the parent, then the child is reached one step earlier by
+     * the merged joint action from the parent. Going through this state is then
+     * just a worse ordering of independent moves and the child is not generated.
+     */
+    private boolean commutesWithParent(Action[] jointAction)
+    {
+        Action[] merged = Arrays.copyOf(this.jointAction, this.jointAction.length);
+        boolean acting = false;
+        for (int agent = 0; agent < jointAction.length; ++agent)
+        {
+            if (jointAction[agent] == Action.NoOp)
+            {
+                continue;
+            }
+            if (merged[agent] != Action.NoOp || !this.parent.isApplicable(agent, jointAction[agent]))
+            {
+                return false;
+            }
+            merged[agent] = jointAction[agent];
+            acting = true;
+        }
+        return acting && !this.parent.isConflicting(merged);
+    }
+
+    /*
+     * Returns the state resulting from applying jointAction in this state.
+     * Precondition: the joint action is applicable and non-conflicting.
+     */
+    State apply(Action[] jointAction)
+    {
+        return new State(this, jointAction);
+    }
+
+    /*
+     * Relevance pruning: the agents that still have work in this state, those
+     * with an unsatisfied goal of their own or of a box of their color. Agents
+     * of Level.relevantAgents are the ones that ever have.
+     */
+    private boolean[] activeAgents()
+    {
+        boolean[] unfinished = new boolean[Color.values().length];
+        boolean[] active = new boolean[this.agentRows.length];
+        for (int[] goal : this.level.goalCoords)
+        {
+            char id = this.level.goals[goal[1]][goal[0]];
+            if ('A' <= id && id <= 'Z' && this.boxes[goal[1]][goal[0]] != id)
+            {
+                unfinished[this.level.boxColors[id - 'A'].ordinal()] = true;
+            }
+        }
+        for (int agent = 0; agent < active.length; ++agent)
+        {
+            int goal = this.level.agentGoals[agent];
+            active[agent] = unfinished[this.level.agentColors[agent].ordinal()] ||
+                            (goal >= 0 && (this.agentRows[agent] != this.level.goalCoords[goal][1] ||
+                                           this.agentCols[agent] != this.level.goalCoords[goal][0]));
+        }
+        return active;
+    }
+
+    /*
+     * Boxes of letters without goals are not moved, and agents without work
+     * only move out of the way, when they stand next to an active agent or a box.
+     */
+    private boolean isRelevant(int agent, Action action, boolean[] active)
+    {
+        int row = this.agentRows[agent];
+        int col = this.agentCols[agent];
+        switch (action.type)
+        {
+            case NoOp:
+                return true;
+
+            case Move:
+                if (active[agent])
+                {
+                    return true;
+                }
+                for (int other = 0; other < this.agentRows.length; ++other)
+                {
+                    if (active[other] &&
+                        Math.abs(this.agentRows[other] - row) + Math.abs(this.agentCols[other] - col) == 1)
+                    {
+                        return true;
+                    }
+                }
+                return this.boxes[row - 1][col] != 0 || this.boxes[row + 1][col] != 0 ||
+                       this.boxes[row][col - 1] != 0 || this.boxes[row][col + 1] != 0;
+
+            case Push:
+                char pushed = this.boxes[row + action.agentRowDelta][col + action.agentColDelta];
+                return active[agent] && this.level.relevantLetters[pushed - 'A'];
+
+            case Pull:
+                char pulled = this.boxes[row - action.boxRowDelta][col - action.boxColDelta];
+                return active[agent] && this.level.relevantLetters[pulled - 'A'];
+        }
+        return true;
+    }
+
+    boolean isApplicable(int agent, Action action)
+    {
+        if (DEBUG) {
+            System.err.println("-------- Checking action " + action.name + "------------");
+        }
+
+        int agentRow = this.agentRows[agent];
+        int agentCol = this.agentCols[agent];
+        Color agentColor = this.level.agentColors[agent];
+        Color boxColor;
+        int boxRow;
+        int boxCol;
+        char box;
+        int destinationRow;
+        int destinationCol;
+        switch (action.type)
+        {
+            case NoOp:
+                return true;
+
+            case Move:
+                destinationRow = agentRow + action.agentRowDelta;
+                destinationCol = agentCol + action.agentColDelta;
+                return this.cellIsFree(destinationRow, destinationCol);
+
+               
+            case Pull:
+                // A pull is appliccable if the cell in the direction the agent is moving is free
+                // AND the cell in the direction opposite where the agent is moving contains a box
+                // of the same color as the agent.
+
+                // Get current box position
+                boxRow = agentRow - action.boxRowDelta;
+                boxCol = agentCol - action.boxColDelta;
+
+                // Get agent destination position
+                destinationRow = agentRow + action.agentRowDelta;
+                destinationCol = agentCol + action.agentColDelta;
+
+                box = this.boxes[boxRow][boxCol];
+
+                // Check that agent is moving into an empty cell
+                Boolean agentCellIsFree = this.cellIsFree(destinationRow, destinationCol);
+
+                if (DEBUG) {
+                    System.err.println("Agent at ( " + agentRow + ", " + agentCol + ")");
+                    System.err.println("Agent destination cell is free: " + agentCellIsFree);
+                }
+
+                Boolean boxInCell = false;
+                Boolean colorsMatch = false;
+
+                // Check that a box in the right position exists and has the right color
+                if (box != '\0') {
                     boxInCell = true;
 
                     int boxIndex = ((int) box) - 65;
-                    boxColor = boxColors[boxIndex];
+                    boxColor = this.level.boxColors[boxIndex];
 
                     if (boxColor == agentColor) {
                         colorsMatch = true;
@@ -545,7 +1078,7 @@ public class State
                 // Check that colors of box and agent match
                 colorsMatch = false;
                 int boxIndex = ((int) box) - 65;
-                boxColor = boxColors[boxIndex];
+                boxColor = this.level.boxColors[boxIndex];
 
                 if (boxColor == agentColor) {
                     colorsMatch = true;
@@ -564,81 +1097,154 @@ public class State
 
     
 
-    private boolean isConflicting(Action[] jointAction)
+    /*
+     * Scratch buffer for isConflicting, one int per cell. A cell is marked as
+     * claimed by the current check when it holds the current stamp, so the buffer
+     * never has to be cleared between checks. Every thread has its own buffer, so
+     * searches can run in parallel.
+     */
+    private static class ClaimBuffer
     {
-        int numAgents = this.agentRows.length;
+        int[] claimed = new int[0];
+        int stamp = 0;
+    }
 
-        int[] destinationRows = new int[numAgents]; // row of new cell to become occupied by action
-        int[] destinationCols = new int[numAgents]; // column of new cell to become occupied by action
-        int[] boxRows = new int[numAgents]; // current row of box moved by action
-        int[] boxCols = new int[numAgents]; // current column of box moved by action
+    private static final ThreadLocal<ClaimBuffer> claimBuffer = ThreadLocal.withInitial(ClaimBuffer::new);
+
+    /*
+     * A joint action is conflicting if two agents move objects (themselves or a
+     * box) into the same cell, or if two agents push or pull the same box.
+     *
+     * Only cells that are free at the start of the step can be moved into (the
+     * applicability check makes sure of that), so the cells that become occupied
+     * are: the destination of a moving or pulling agent, and the destination of a
+     * pushed box. A pushing agent moves into its box's old cell and a pulled box
+     * into its agent's old cell, which no other agent can target. A moved box is
+     * identified by its current cell. All of these are claimed in one buffer in a
+     * single pass, so the check is linear in the number of agents.
+     */
+    boolean isConflicting(Action[] jointAction)
+    {
+        int numAgents = this.agentRows.length;
+        int numCols = this.level.numCols;
+        ClaimBuffer buffer = this.claimBuffer();
 
-        // Collect cells to be occupied and boxes to be moved
         for (int agent = 0; agent < numAgents; ++agent)
         {
             Action action = jointAction[agent];
             int agentRow = this.agentRows[agent];
             int agentCol = this.agentCols[agent];
-            int boxRow = agentRow - action.boxRowDelta;
-            int boxCol = agentCol - action.boxColDelta;
+            int destinationRow = agentRow + action.agentRowDelta;
+            int destinationCol = agentCol + action.agentColDelta;
 
-            // Update agent and box positions
             switch (action.type)
             {
                 case NoOp:
                     break;
 
                 case Move:
-                    destinationRows[agent] = agentRow + action.agentRowDelta;
-                    destinationCols[agent] = agentCol + action.agentColDelta;
-                    boxRows[agent] = agentRow; // Distinct dummy value
-                    boxCols[agent] = agentCol; // Distinct dummy value
+                    if (claim(buffer, destinationRow * numCols + destinationCol))
+                    {
+                        return true;
+                    }
                     break;
-                
+
                 case Pull:
-                /*
-                 * For every agent with a joint action, add its destination row/col to an array
-                 * For every agent, add its target box to an array
-                 */
-                    destinationRows[agent] = agentRow + action.agentRowDelta;
-                    destinationCols[agent] = agentCol + action.agentColDelta;
-                    boxRows[agent] = boxRow + action.boxRowDelta;
-                    boxCols[agent] = boxCol + action.boxColDelta;
-                    //System.err.println("Agent: (" + agentRow + ", " + agentCol + "), Box: (" + boxRow + ", " + boxCol +")");
-                    //System.err.println("Agent dest. (" + destinationRows[agent] + ", " + destinationCols[agent] + "), Box dest. (" + boxRows[agent] + ", " + boxCols[agent] +")");
-                    
+                    // Agent destination, and the box being pulled
+                    if (claim(buffer, destinationRow * numCols + destinationCol) ||
+                        claim(buffer, (agentRow - action.boxRowDelta) * numCols + agentCol - action.boxColDelta))
+                    {
+                        return true;
+                    }
                     break;
-           }
+
+                case Push:
+                    // The box being pushed (the agent's destination), and the box destination
+                    if (claim(buffer, destinationRow * numCols + destinationCol) ||
+                        claim(buffer, (destinationRow + action.boxRowDelta) * numCols + destinationCol + action.boxColDelta))
+                    {
+                        return true;
+                    }
+                    break;
+            }
         }
 
-        for (int a1 = 0; a1 < numAgents; ++a1)
+        return false;
+    }
+
+    // The calling thread's claim buffer, sized for this level and with a fresh stamp
+    private ClaimBuffer claimBuffer()
+    {
+        ClaimBuffer buffer = claimBuffer.get();
+        if (buffer.claimed.length != this.level.numRows * this.level.numCols)
         {
-            if (jointAction[a1] == Action.NoOp)
-            {
-                continue;
-            }
+            buffer.claimed = new int[this.level.numRows * this.level.numCols];
+            buffer.stamp = 0;
+        }
+        if (++buffer.stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(buffer.claimed, 0);
+            buffer.stamp = 1;
+        }
+        return buffer;
+    }
 
-            for (int a2 = a1 + 1; a2 < numAgents; ++a2)
-            {
-                if (jointAction[a2] == Action.NoOp)
-                {
-                    continue;
-                }
+    /*
+     * Claims a cell for the current conflict check. Returns true if another agent
+     * already claimed it.
+     */
+    private static boolean claim(ClaimBuffer buffer, int cell)
+    {
+        if (buffer.claimed[cell] == buffer.stamp)
+        {
+            return true;
+        }
+        buffer.claimed[cell] = buffer.stamp;
+        return false;
+    }
 
-                // Agents moving into same cell?
-                if (destinationRows[a1] == destinationRows[a2] && destinationCols[a1] == destinationCols[a2])
+    /*
+     * Returns true if two agents are close enough that their actions could
+     * conflict. An action only touches cells within distance 2 of its agent (a
+     * pushed box's destination being the farthest), so agents more than 4 apart
+     * in Manhattan distance can never conflict.
+     *
+     * Two agents are at most 4 apart exactly when the cells within distance 2 of
+     * them overlap, so each agent claims those cells in the claim buffer and a
+     * cell claimed twice answers the question in time linear in the agents.
+     */
+    private boolean agentsMayInteract()
+    {
+        int numAgents = this.agentRows.length;
+        if (numAgents < 2)
+        {
+            return false;
+        }
+        int numRows = this.level.numRows;
+        int numCols = this.level.numCols;
+        ClaimBuffer buffer = this.claimBuffer();
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            int agentRow = this.agentRows[agent];
+            int agentCol = this.agentCols[agent];
+            for (int row = Math.max(0, agentRow - 2); row <= Math.min(numRows - 1, agentRow + 2); ++row)
+            {
+                int reach = 2 - Math.abs(row - agentRow);
+                for (int col = Math.max(0, agentCol - reach); col <= Math.min(numCols - 1, agentCol + reach); ++col)
                 {
-                    return true;
+                    if (claim(buffer, row * numCols + col))
+                    {
+                        return true;
+                    }
                 }
             }
         }
-
         return false;
     }
 
     private boolean cellIsFree(int row, int col)
     {
-        return !this.walls[row][col] && this.boxes[row][col] == 0 && this.agentAt(row, col) == 0;
+        return !this.level.walls[row][col] && this.boxes[row][col] == 0 && this.agentAt(row, col) == 0;
     }
 
     private char agentAt(int row, int col)
@@ -653,13 +1259,192 @@ public class State
         return 0;
     }
 
+    private static final Action[] ACTIONS = Action.values();
+    private static final Action[] MOVES = {Action.MoveN, Action.MoveS, Action.MoveE, Action.MoveW};
+
+    /*
+     * Scratch buffer of floodFill, indexed by cell (row * numCols + col) like
+     * ClaimBuffer: a cell has been reached in the current fill when it holds the
+     * current stamp. One per thread.
+     */
+    private static class ReachBuffer
+    {
+        int[] reached = new int[0];
+        int stamp = 0;
+        int[] distances = new int[0];
+        byte[] moves = new byte[0];
+        int[] cells = new int[0];
+    }
+
+    private static final ThreadLocal<ReachBuffer> reachBuffer = ThreadLocal.withInitial(ReachBuffer::new);
+
+    // Walks are filled in their own buffer, so that a state can record walks in
+    // the trail store while it expands from the fill in reachBuffer
+    private static final ThreadLocal<ReachBuffer> walkBuffer = ThreadLocal.withInitial(ReachBuffer::new);
+
+    /*
+     * Breadth-first search over the cells agent 0 can walk to without moving a
+     * box. Fills in the reached cells in the order they are reached, and for each
+     * its distance and the move that reached it. Stops once target is reached (-1
+     * for none). Returns the number of cells reached.
+     */
+    private int floodFill(ReachBuffer buffer, int target)
+    {
+        int numCols = this.level.numCols;
+        int numCells = this.level.numRows * numCols;
+        if (buffer.reached.length != numCells)
+        {
+            buffer.reached = new int[numCells];
+            buffer.distances = new int[numCells];
+            buffer.moves = new byte[numCells];
+            buffer.cells = new int[numCells];
+            buffer.stamp = 0;
+        }
+        if (++buffer.stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(buffer.reached, 0);
+            buffer.stamp = 1;
+        }
+
+        boolean[][] walls = this.level.walls;
+        int[] reached = buffer.reached;
+        int stamp = buffer.stamp;
+        int[] distances = buffer.distances;
+        int[] cells = buffer.cells;
+        int start = this.agentRows[0] * numCols + this.agentCols[0];
+        reached[start] = stamp;
+        distances[start] = 0;
+        cells[0] = start;
+        int size = 1;
+        for (int head = 0; head < size && cells[head] != target; ++head)
+        {
+            int cell = cells[head];
+            int row = cell / numCols;
+            int col = cell - row * numCols;
+            for (Action move : MOVES)
+            {
+                int nextRow = row + move.agentRowDelta;
+                int nextCol = col + move.agentColDelta;
+                int next = cell + move.agentRowDelta * numCols + move.agentColDelta;
+                if (reached[next] != stamp && !walls[nextRow][nextCol] && this.boxes[nextRow][nextCol] == 0)
+                {
+                    reached[next] = stamp;
+                    distances[next] = distances[cell] + 1;
+                    buffer.moves[next] = (byte) move.ordinal();
+                    cells[size++] = next;
+                }
+            }
+        }
+        return size;
+    }
+
+    /*
+     * A shortest walk of agent 0 to (row, col), which it must be able to reach.
+     */
+    Action[] walkTo(int row, int col)
+    {
+        ReachBuffer buffer = walkBuffer.get();
+        int numCols = this.level.numCols;
+        int target = row * numCols + col;
+        this.floodFill(buffer, target);
+
+        Action[] walk = new Action[buffer.distances[target]];
+        for (int step = walk.length - 1; step >= 0; --step)
+        {
+            walk[step] = ACTIONS[buffer.moves[target]];
+            target -= walk[step].agentRowDelta * numCols + walk[step].agentColDelta;
+        }
+        return walk;
+    }
+
+    /*
+     * Records the walk of agent 0 to (row, col) in the trail store after node
+     * parentId, one move per node. Returns the id of the last move.
+     */
+    private int recordWalk(int parentId, int row, int col)
+    {
+        int id = parentId;
+        for (Action move : this.walkTo(row, col))
+        {
+            id = this.context.trail.add(id, new Action[]{move});
+        }
+        return id;
+    }
+
+    // Smallest of the first count values
+    private static int min(int[] values, int count)
+    {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < count; ++i)
+        {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    /*
+     * Returns the id of this state in the trail store, recording it first if
+     * needed. States generated before the trail store was enabled still have
+     * their parent pointers, so their ancestry is recorded root first.
+     */
+    public int trailId()
+    {
+        if (this.trailId < 0)
+        {
+            ArrayList<State> unrecorded = new ArrayList<>();
+            State state = this;
+            while (state != null && state.trailId < 0)
+            {
+                unrecorded.add(state);
+                state = state.parent;
+            }
+            for (int i = unrecorded.size() - 1; i >= 0; --i)
+            {
+                State s = unrecorded.get(i);
+                if (s.parent == null)
+                {
+                    s.trailId = this.context.trail.add(-1, null);
+                }
+                else if (s.g > s.parent.g + 1)
+                {
+                    // Reached by a walk under reachability normalization
+                    Action action = s.jointAction[0];
+                    int parentId = s.parent.recordWalk(s.parent.trailId, s.agentRows[0] - action.agentRowDelta,
+                                                       s.agentCols[0] - action.agentColDelta);
+                    s.trailId = this.context.trail.add(parentId, s.jointAction);
+                }
+                else
+                {
+                    s.trailId = this.context.trail.add(s.parent.trailId, s.jointAction);
+                }
+            }
+        }
+        return this.trailId;
+    }
+
     public Action[][] extractPlan()
     {
+        if (this.parent == null && this.trailId >= 0)
+        {
+            return this.context.trail.extractPlan(this.trailId, this.g);
+        }
+
         Action[][] plan = new Action[this.g][];
         State state = this;
         while (state.jointAction != null)
         {
             plan[state.g - 1] = state.jointAction;
+            if (state.g > state.parent.g + 1)
+            {
+                // The walk left out under reachability normalization
+                Action action = state.jointAction[0];
+                Action[] walk = state.parent.walkTo(state.agentRows[0] - action.agentRowDelta,
+                                                    state.agentCols[0] - action.agentColDelta);
+                for (int step = 0; step < walk.length; ++step)
+                {
+                    plan[state.parent.g + step] = new Action[]{walk[step]};
+                }
+            }
             state = state.parent;
         }
         return plan;
@@ -672,12 +1457,20 @@ public class State
         {
             final int prime = 31;
             int result = 1;
-            result = prime * result + Arrays.hashCode(this.agentColors);
-            result = prime * result + Arrays.hashCode(this.boxColors);
-            result = prime * result + Arrays.deepHashCode(this.walls);
-            result = prime * result + Arrays.deepHashCode(this.goals);
-            result = prime * result + Arrays.hashCode(this.agentRows);
-            result = prime * result + Arrays.hashCode(this.agentCols);
+            if (this.isNormalized())
+            {
+                result = prime * result + this.normalCell();
+            }
+            else if (this.isCanonical())
+            {
+                result = prime * result + Arrays.hashCode(this.canonicalCells());
+            }
+            else
+            {
+                result = prime * result + Arrays.hashCode(this.agentRows);
+                result = prime * result + Arrays.hashCode(this.agentCols);
+            }
+            result = prime * result + Arrays.hashCode(this.partialAction);
             for (int row = 0; row < this.boxes.length; ++row)
             {
                 for (int col = 0; col < this.boxes[row].length; ++col)
@@ -694,6 +1487,54 @@ public class State
         return this.hash;
     }
 
+    /*
+     * 64-bit hash of the agent and box positions, used where states are stored
+     * compactly by fingerprint instead of by reference (see FingerprintSet).
+     * The static level layout is the same for every state and is left out.
+     */
+    public long fingerprint()
+    {
+        long result = 0xCBF29CE484222325L;
+        if (this.isNormalized())
+        {
+            result = (result ^ this.normalCell()) * 0x100000001B3L;
+        }
+        else if (this.isCanonical())
+        {
+            for (int cell : this.canonicalCells())
+            {
+                result = (result ^ cell) * 0x100000001B3L;
+            }
+        }
+        else
+        {
+            for (int agent = 0; agent < this.agentRows.length; ++agent)
+            {
+                result = (result ^ (this.agentRows[agent] * 65536L + this.agentCols[agent])) * 0x100000001B3L;
+            }
+        }
+        for (int row = 0; row < this.boxes.length; ++row)
+        {
+            for (int col = 0; col < this.boxes[row].length; ++col)
+            {
+                char c = this.boxes[row][col];
+                if (c != 0)
+                {
+                    result = (result ^ ((row * 65536L + col) << 8 | c)) * 0x100000001B3L;
+                }
+            }
+        }
+        if (this.partialAction != null)
+        {
+            for (Action action : this.partialAction)
+            {
+                result = (result ^ (action.ordinal() + 1)) * 0x100000001B3L;
+            }
+            result = (result ^ this.partialAction.length) * 0x100000001B3L;
+        }
+        return result ^ (result >>> 29);
+    }
+
     @Override
     public boolean equals(Object obj)
     {
@@ -710,28 +1551,116 @@ public class State
             return false;
         }
         State other = (State) obj;
-        return Arrays.equals(this.agentRows, other.agentRows) &&
-               Arrays.equals(this.agentCols, other.agentCols) &&
-               Arrays.equals(this.agentColors, other.agentColors) &&
-               Arrays.deepEquals(this.walls, other.walls) &&
+        if (this.isNormalized() && other.isNormalized())
+        {
+            if (this.normalCell() != other.normalCell())
+            {
+                return false;
+            }
+        }
+        else if (this.isCanonical() && other.isCanonical())
+        {
+            if (!Arrays.equals(this.canonicalCells(), other.canonicalCells()))
+            {
+                return false;
+            }
+        }
+        else if (!Arrays.equals(this.agentRows, other.agentRows) || !Arrays.equals(this.agentCols, other.agentCols))
+        {
+            return false;
+        }
+        return Arrays.equals(this.partialAction, other.partialAction) &&
                Arrays.deepEquals(this.boxes, other.boxes) &&
-               Arrays.equals(this.boxColors, other.boxColors) &&
-               Arrays.deepEquals(this.goals, other.goals);
+               this.level.sameLayout(other.level);
+    }
+
+    /*
+     * Agents are compared up to symmetry only in full states; intermediate states
+     * of operator decomposition refer to agents by number.
+     */
+    private boolean isCanonical()
+    {
+        return this.context.symmetryReduction && this.partialAction == null;
+    }
+
+    private boolean isNormalized()
+    {
+        return this.context.reachabilityNormalization && this.agentRows.length == 1;
+    }
+
+    /*
+     * The top-left (smallest row * cols + col) of the cells the agent can walk to.
+     */
+    private int normalCell()
+    {
+        if (this.normalCell < 0)
+        {
+            ReachBuffer buffer = reachBuffer.get();
+            int reached = this.floodFill(buffer, -1);
+            this.normalCell = min(buffer.cells, reached);
+        }
+        return this.normalCell;
+    }
+
+    /*
+     * The agents' cells (row * cols + col) indexed by agent number, except that
+     * the cells of each class of interchangeable agents are sorted among the
+     * agents of that class.
+     */
+    private int[] canonicalCells()
+    {
+        if (this.canonicalCells == null)
+        {
+            int numAgents = this.agentRows.length;
+            int numCols = this.level.numCols;
+            int[] cells = new int[numAgents];
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                cells[agent] = this.agentRows[agent] * numCols + this.agentCols[agent];
+            }
+
+            // Each class is listed under its lowest numbered agent
+            int[] members = new int[numAgents];
+            int[] memberCells = new int[numAgents];
+            for (int first = 0; first < numAgents; ++first)
+            {
+                int count = 0;
+                for (int agent = first; agent < numAgents; ++agent)
+                {
+                    if (this.level.agentClasses[agent] == first)
+                    {
+                        members[count] = agent;
+                        memberCells[count] = cells[agent];
+                        ++count;
+                    }
+                }
+                if (count > 1)
+                {
+                    Arrays.sort(memberCells, 0, count);
+                    for (int i = 0; i < count; ++i)
+                    {
+                        cells[members[i]] = memberCells[i];
+                    }
+                }
+            }
+            this.canonicalCells = cells;
+        }
+        return this.canonicalCells;
     }
 
     @Override
     public String toString()
     {
         StringBuilder s = new StringBuilder();
-        for (int row = 0; row < this.walls.length; row++)
+        for (int row = 0; row < this.level.walls.length; row++)
         {
-            for (int col = 0; col < this.walls[row].length; col++)
+            for (int col = 0; col < this.level.walls[row].length; col++)
             {
                 if (this.boxes[row][col] > 0)
                 {
                     s.append(this.boxes[row][col]);
                 }
-                else if (this.walls[row][col])
+                else if (this.level.walls[row][col])
                 {
                     s.append("+");
                 }
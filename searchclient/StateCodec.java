@@ -0,0 +1,147 @@
+package searchclient;
+
+import java.util.Arrays;
+
+/*
+ * Compact fixed-length encoding of states, for storing states outside the heap.
+ *
+ * A state is packed into a few longs: the cell of every agent, then the cell and
+ * letter of every box in cell order. Cells are numbered over the free cells of
+ * the level, so a cell takes ceil(log2(free cells)) bits and a box 5 more for
+ * its letter. The walls, goals and colors are the same for every state of a
+ * level and are not stored. Encodings compare (as unsigned longs, word by word)
+ * equal exactly when the states are equal.
+ */
+public class StateCodec
+{
+    public final int words;
+
+    private final Level level;
+    private final SearchContext context;
+    private final int numAgents;
+    private final int numBoxes;
+    private final int cellBits;
+
+    public StateCodec(State initialState)
+    {
+        this.level = initialState.level;
+        this.context = initialState.context;
+        this.numAgents = initialState.agentRows.length;
+
+        int boxes = 0;
+        for (char[] row : initialState.boxes)
+        {
+            for (char box : row)
+            {
+                if (box != 0)
+                {
+                    ++boxes;
+                }
+            }
+        }
+        this.numBoxes = boxes;
+
+        this.cellBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(this.level.numCells - 1));
+        long bits = (long) this.numAgents * this.cellBits + (long) this.numBoxes * (this.cellBits + 5);
+        this.words = (int) Math.max(1, (bits + 63) / 64);
+    }
+
+    /*
+     * Writes the encoding of s to out[offset .. offset + words).
+     */
+    public void encode(State s, long[] out, int offset)
+    {
+        Arrays.fill(out, offset, offset + this.words, 0);
+        int bit = 0;
+        for (int agent = 0; agent < this.numAgents; agent++)
+        {
+            bit = put(out, offset, bit, this.level.cellIndex[s.agentRows[agent]][s.agentCols[agent]], this.cellBits);
+        }
+        for (int row = 0; row < s.boxes.length; row++)
+        {
+            for (int col = 0; col < s.boxes[row].length; col++)
+            {
+                char box = s.boxes[row][col];
+                if (box != 0)
+                {
+                    bit = put(out, offset, bit, this.level.cellIndex[row][col], this.cellBits);
+                    bit = put(out, offset, bit, box - 'A', 5);
+                }
+            }
+        }
+    }
+
+    /*
+     * Rebuilds the state encoded at in[offset .. offset + words), as a root
+     * state without parent.
+     */
+    public State decode(long[] in, int offset)
+    {
+        int[] agentRows = new int[this.numAgents];
+        int[] agentCols = new int[this.numAgents];
+        int bit = 0;
+        for (int agent = 0; agent < this.numAgents; agent++)
+        {
+            int cell = (int) get(in, offset, bit, this.cellBits);
+            bit += this.cellBits;
+            agentRows[agent] = this.level.cellRows[cell];
+            agentCols[agent] = this.level.cellCols[cell];
+        }
+
+        char[][] boxes = new char[this.level.numRows][];
+        for (int row = 0; row < boxes.length; row++)
+        {
+            boxes[row] = new char[this.level.walls[row].length];
+        }
+        for (int box = 0; box < this.numBoxes; box++)
+        {
+            int cell = (int) get(in, offset, bit, this.cellBits);
+            bit += this.cellBits;
+            char letter = (char) ('A' + get(in, offset, bit, 5));
+            bit += 5;
+            boxes[this.level.cellRows[cell]][this.level.cellCols[cell]] = letter;
+        }
+
+        return State.relocated(this.level, agentRows, agentCols, boxes, this.context);
+    }
+
+    /*
+     * Compares the encodings at a[aOffset] and b[bOffset].
+     */
+    public int compare(long[] a, int aOffset, long[] b, int bOffset)
+    {
+        for (int i = 0; i < this.words; i++)
+        {
+            int c = Long.compareUnsigned(a[aOffset + i], b[bOffset + i]);
+            if (c != 0)
+            {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    // Bits are filled from the most significant end of each word, so that
+    // comparing words compares the encoded fields in order.
+    private static int put(long[] out, int offset, int bit, long value, int length)
+    {
+        for (int i = length - 1; i >= 0; i--, bit++)
+        {
+            if ((value >>> i & 1) != 0)
+            {
+                out[offset + bit / 64] |= 1L << (63 - bit % 64);
+            }
+        }
+        return bit;
+    }
+
+    private static long get(long[] in, int offset, int bit, int length)
+    {
+        long value = 0;
+        for (int i = 0; i < length; i++, bit++)
+        {
+            value = value << 1 | (in[offset + bit / 64] >>> (63 - bit % 64) & 1);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,369 @@
+package searchclient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Subgoal-serialized planner for large levels (-subgoals).
+ *
+ * The box goals are put in an order in which filling one goal never cuts off
+ * the goals still to be filled (dead ends and the far end of corridors first),
+ * and are then solved one at a time with the regular search engine. Each
+ * subgoal search first sees only the agents that can move the goal's box
+ * letter and the boxes of that letter; every other agent and box is a wall. If
+ * that restricted search fails, for example because another box is in the way,
+ * the subgoal is retried with all boxes of the agents' colors, and then with all
+ * agents and boxes. Goals reached earlier stay in the
+ * goal set of later subgoals, so they are kept satisfied. Agent goals come last,
+ * in a single subgoal.
+ *
+ * The partial plans are replayed on the full level one after the other, so
+ * every subgoal starts from where the previous one ended.
+ */
+public class SubgoalPlanner
+{
+    // Layout of the full level, and the search context the subgoal searches copy
+    private final Level level;
+    private final SearchContext context;
+    private final Color[] agentColors;
+    private final boolean[][] walls;
+    private final Color[] boxColors;
+    private final char[][] goals;
+
+    private SubgoalPlanner(State initialState)
+    {
+        this.level = initialState.level;
+        this.context = initialState.context;
+        this.agentColors = this.level.agentColors;
+        this.walls = this.level.walls;
+        this.boxColors = this.level.boxColors;
+        this.goals = this.level.goals;
+    }
+
+    public static Action[][] search(State initialState, String strategy, int w)
+    {
+        return new SubgoalPlanner(initialState).run(initialState, strategy, w);
+    }
+
+    private Action[][] run(State initialState, String strategy, int w)
+    {
+        int numAgents = initialState.agentRows.length;
+
+        ArrayList<int[]> subgoals = this.orderGoals();
+        System.err.format("Subgoal planner: %d subgoals.\n", subgoals.size());
+
+        int[] agentRows = initialState.agentRows;
+        int[] agentCols = initialState.agentCols;
+        char[][] boxes = initialState.boxes;
+        ArrayList<Action[]> plan = new ArrayList<>();
+        long totalStart = System.nanoTime();
+
+        char[][] reached = new char[this.goals.length][];
+        for (int row = 0; row < this.goals.length; row++)
+        {
+            reached[row] = new char[this.goals[row].length];
+        }
+
+        for (int i = 0; i < subgoals.size(); ++i)
+        {
+            long start = System.nanoTime();
+            int[] subgoal = subgoals.get(i);
+            int row = subgoal[0];
+            int col = subgoal[1];
+            char goal = this.goals[row][col];
+            reached[row][col] = goal;
+
+            // The last subgoal holds every agent goal
+            if ('0' <= goal && goal <= '9')
+            {
+                for (int j = i + 1; j < subgoals.size(); ++j)
+                {
+                    int[] cell = subgoals.get(j);
+                    reached[cell[0]][cell[1]] = this.goals[cell[0]][cell[1]];
+                }
+                i = subgoals.size() - 1;
+            }
+
+            // Relevant agents: those that can move the box, or all agents with goals
+            boolean[] relevant = new boolean[numAgents];
+            for (int agent = 0; agent < numAgents; ++agent)
+            {
+                relevant[agent] = 'A' <= goal && goal <= 'Z' ? this.agentColors[agent] == this.boxColors[goal - 'A']
+                                                             : hasGoal(reached, agent);
+            }
+
+            char letter = 'A' <= goal && goal <= 'Z' ? goal : 0;
+            Action[][] partialPlan = this.plan(agentRows, agentCols, boxes, reached, relevant, letter, strategy, w);
+            if (partialPlan == null && letter != 0)
+            {
+                System.err.format("Subgoal planner: retrying subgoal %d with all boxes of the agents.\n", i + 1);
+                partialPlan = this.plan(agentRows, agentCols, boxes, reached, relevant, (char) 0, strategy, w);
+            }
+            if (partialPlan == null)
+            {
+                System.err.format("Subgoal planner: retrying subgoal %d with all agents.\n", i + 1);
+                Arrays.fill(relevant, true);
+                partialPlan = this.plan(agentRows, agentCols, boxes, reached, relevant, (char) 0, strategy, w);
+            }
+            if (partialPlan == null)
+            {
+                System.err.format("Subgoal planner: subgoal %d (%c at %d,%d) failed.\n", i + 1, goal, row, col);
+                return null;
+            }
+
+            // Carry out the partial plan on the full level
+            State state = new State(this.level, agentRows, agentCols, boxes);
+            for (Action[] jointAction : partialPlan)
+            {
+                state = state.apply(jointAction);
+                plan.add(jointAction);
+            }
+            agentRows = state.agentRows;
+            agentCols = state.agentCols;
+            boxes = state.boxes;
+
+            System.err.format("Subgoal %d/%d (%c at %d,%d): %,d actions in %.3f s, plan length %,d.\n",
+                              i + 1, subgoals.size(), goal, row, col, partialPlan.length,
+                              (System.nanoTime() - start) / 1_000_000_000d, plan.size());
+        }
+
+        System.err.format("Subgoal planner: all subgoals solved in %.3f s.\n",
+                          (System.nanoTime() - totalStart) / 1_000_000_000d);
+        return plan.toArray(new Action[0][]);
+    }
+
+    private static boolean hasGoal(char[][] goalCells, int agent)
+    {
+        for (char[] row : goalCells)
+        {
+            for (char goal : row)
+            {
+                if (goal == '0' + agent)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Orders the goal cells: box goals first, each time picking a goal whose cell,
+     * once filled by a box, leaves the remaining box goals connected to each
+     * other. Goals deep in a dead end are thus filled before the goals in front
+     * of them. Agent goals follow in level order.
+     */
+    private ArrayList<int[]> orderGoals()
+    {
+        ArrayList<int[]> boxGoals = new ArrayList<>();
+        ArrayList<int[]> agentGoals = new ArrayList<>();
+        for (int row = 0; row < this.goals.length; row++)
+        {
+            for (int col = 0; col < this.goals[row].length; col++)
+            {
+                char goal = this.goals[row][col];
+                if ('A' <= goal && goal <= 'Z')
+                {
+                    boxGoals.add(new int[]{row, col});
+                }
+                else if ('0' <= goal && goal <= '9')
+                {
+                    agentGoals.add(new int[]{row, col});
+                }
+            }
+        }
+
+        boolean[][] filled = new boolean[this.walls.length][];
+        for (int row = 0; row < this.walls.length; row++)
+        {
+            filled[row] = Arrays.copyOf(this.walls[row], this.walls[row].length);
+        }
+
+        ArrayList<int[]> ordered = new ArrayList<>();
+        while (!boxGoals.isEmpty())
+        {
+            int next = 0;
+            for (int i = 0; i < boxGoals.size(); ++i)
+            {
+                int[] goal = boxGoals.get(i);
+                filled[goal[0]][goal[1]] = true;
+                boolean connected = isConnected(filled, boxGoals, i);
+                filled[goal[0]][goal[1]] = false;
+                if (connected)
+                {
+                    next = i;
+                    break;
+                }
+            }
+
+            int[] goal = boxGoals.remove(next);
+            filled[goal[0]][goal[1]] = true;
+            ordered.add(goal);
+        }
+
+        ordered.addAll(agentGoals);
+        return ordered;
+    }
+
+    /*
+     * Returns true if all goals except the skipped one can reach each other's
+     * cell through cells that are not blocked.
+     */
+    private static boolean isConnected(boolean[][] blocked, ArrayList<int[]> goalCells, int skip)
+    {
+        int first = skip == 0 ? 1 : 0;
+        if (first >= goalCells.size())
+        {
+            return true;
+        }
+
+        boolean[][] visited = new boolean[blocked.length][];
+        for (int row = 0; row < blocked.length; row++)
+        {
+            visited[row] = new boolean[blocked[row].length];
+        }
+
+        // The remaining goals are not filled yet, so they are free cells
+        int[] start = goalCells.get(first);
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        queue.add(start);
+        visited[start[0]][start[1]] = true;
+        while (!queue.isEmpty())
+        {
+            int[] cell = queue.poll();
+            int[][] neighbours = {{cell[0] - 1, cell[1]}, {cell[0] + 1, cell[1]},
+                                  {cell[0], cell[1] - 1}, {cell[0], cell[1] + 1}};
+            for (int[] n : neighbours)
+            {
+                if (n[0] >= 0 && n[0] < blocked.length && n[1] >= 0 && n[1] < blocked[n[0]].length &&
+                    !blocked[n[0]][n[1]] && !visited[n[0]][n[1]])
+                {
+                    visited[n[0]][n[1]] = true;
+                    queue.add(n);
+                }
+            }
+        }
+
+        for (int i = 0; i < goalCells.size(); ++i)
+        {
+            if (i != skip && !visited[goalCells.get(i)[0]][goalCells.get(i)[1]])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Plans one subgoal with the relevant agents (renumbered from 0) and the boxes
+     * of their colors, or only the boxes and goals of the given letter if it is
+     * not 0. Everything else is a wall. Returns the plan as joint actions
+     * over all agents, with NoOp for the agents left out.
+     */
+    private Action[][] plan(int[] agentRows, int[] agentCols, char[][] boxes, char[][] subgoals,
+                            boolean[] relevant, char letter, String strategy, int w)
+    {
+        int numAgents = agentRows.length;
+        int[] agents = new int[numAgents];
+        int k = 0;
+        boolean[] relevantColor = new boolean[Color.values().length];
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            if (relevant[agent])
+            {
+                agents[k++] = agent;
+                relevantColor[this.agentColors[agent].ordinal()] = true;
+            }
+        }
+        agents = Arrays.copyOf(agents, k);
+        if (k == 0)
+        {
+            return null;
+        }
+
+        int[] rows = new int[k];
+        int[] cols = new int[k];
+        Color[] colors = new Color[k];
+        for (int i = 0; i < k; ++i)
+        {
+            rows[i] = agentRows[agents[i]];
+            cols[i] = agentCols[agents[i]];
+            colors[i] = this.agentColors[agents[i]];
+        }
+
+        boolean[][] subWalls = new boolean[this.walls.length][];
+        char[][] subBoxes = new char[boxes.length][];
+        char[][] subGoals = new char[this.goals.length][];
+        for (int row = 0; row < this.walls.length; row++)
+        {
+            subWalls[row] = Arrays.copyOf(this.walls[row], this.walls[row].length);
+            subBoxes[row] = new char[boxes[row].length];
+            subGoals[row] = new char[this.goals[row].length];
+            for (int col = 0; col < this.walls[row].length; col++)
+            {
+                char box = boxes[row][col];
+                if (box != 0)
+                {
+                    Color color = this.boxColors[box - 'A'];
+                    if (color != null && relevantColor[color.ordinal()] && (letter == 0 || box == letter))
+                    {
+                        subBoxes[row][col] = box;
+                    }
+                    else
+                    {
+                        subWalls[row][col] = true;
+                    }
+                }
+
+                // Boxes of other letters are walls under a letter, so their goals stay
+                // satisfied without being part of the search
+                char goal = subgoals[row][col];
+                if ('A' <= goal && goal <= 'Z' && this.boxColors[goal - 'A'] != null &&
+                    relevantColor[this.boxColors[goal - 'A'].ordinal()] && (letter == 0 || goal == letter))
+                {
+                    subGoals[row][col] = goal;
+                }
+                else if ('0' <= goal && goal <= '9')
+                {
+                    int local = Arrays.binarySearch(agents, goal - '0');
+                    if (local >= 0)
+                    {
+                        subGoals[row][col] = (char) ('0' + local);
+                    }
+                }
+            }
+        }
+
+        for (int agent = 0; agent < numAgents; ++agent)
+        {
+            if (!relevant[agent])
+            {
+                subWalls[agentRows[agent]][agentCols[agent]] = true;
+            }
+        }
+
+        // Each subgoal search gets its own context, with a trail store of its own
+        // if the search of the full level records one
+        SearchContext context = this.context.copy();
+        context.trail = this.context.trail != null ? new TrailStore(k) : null;
+        Level subLevel = new Level(colors, subWalls, this.boxColors, subGoals);
+        State subState = new State(subLevel, rows, cols, subBoxes, context);
+        Action[][] subPlan = SearchClient.search(subState, SearchClient.createFrontier(strategy, w, subState));
+        if (subPlan == null)
+        {
+            return null;
+        }
+
+        Action[][] plan = new Action[subPlan.length][numAgents];
+        for (int step = 0; step < subPlan.length; ++step)
+        {
+            Arrays.fill(plan[step], Action.NoOp);
+            for (int i = 0; i < k; ++i)
+            {
+                plan[step][agents[i]] = subPlan[step][i];
+            }
+        }
+        return plan;
+    }
+}
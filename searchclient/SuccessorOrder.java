@@ -0,0 +1,122 @@
+package searchclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Order in which the graph search adds the successors of a state to the
+ * frontier (-order). State.getExpandedStates returns them in the order the
+ * joint actions are enumerated; the order only matters among states the frontier
+ * ranks equally, which is all of them for BFS and DFS.
+ *
+ *   none       enumeration order (default)
+ *   shuffle    random, from a generator seeded with -seed at the start of every
+ *              search; each search has its own, so searches running in parallel
+ *              are reproducible
+ *   heuristic  by the heuristic value of the successor, best first
+ *   helpful    successors reached by helpful actions (see Heuristic.isHelpful)
+ *              first
+ *
+ * Searches that are not frontier based keep the enumeration order.
+ */
+public abstract class SuccessorOrder
+{
+    public static final String[] POLICIES = {"none", "shuffle", "heuristic", "helpful"};
+    public static String policy = "none";
+    public static long seed = 1;
+
+    /*
+     * Reorders the successors of parent, best first.
+     */
+    public abstract void order(State parent, ArrayList<State> successors);
+
+    /*
+     * The order of the current policy for a new search. Heuristic based orders
+     * use the heuristic of the frontier if it has one.
+     */
+    public static SuccessorOrder create(State initialState, Heuristic heuristic)
+    {
+        switch (policy)
+        {
+            case "shuffle":
+                return new Shuffle(seed);
+            case "heuristic":
+                return new ByHeuristic(heuristic != null ? heuristic : new HeuristicGreedy(initialState));
+            case "helpful":
+                return new HelpfulFirst(heuristic != null ? heuristic : new HeuristicGreedy(initialState));
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * The policy called name, ignoring case, or null if there is none.
+     */
+    public static String parsePolicy(String name)
+    {
+        for (String policy : POLICIES)
+        {
+            if (policy.equals(name.toLowerCase(Locale.ROOT)))
+            {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    private static class Shuffle
+            extends SuccessorOrder
+    {
+        private final Random random;
+
+        Shuffle(long seed)
+        {
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void order(State parent, ArrayList<State> successors)
+        {
+            Collections.shuffle(successors, this.random);
+        }
+    }
+
+    private static class ByHeuristic
+            extends SuccessorOrder
+    {
+        private final Heuristic heuristic;
+
+        ByHeuristic(Heuristic heuristic)
+        {
+            this.heuristic = heuristic;
+        }
+
+        @Override
+        public void order(State parent, ArrayList<State> successors)
+        {
+            successors.sort(Comparator.comparingInt(this.heuristic::h));
+        }
+    }
+
+    // Successors without a joint action (trail store) count as not helpful
+    private static class HelpfulFirst
+            extends SuccessorOrder
+    {
+        private final Heuristic heuristic;
+
+        HelpfulFirst(Heuristic heuristic)
+        {
+            this.heuristic = heuristic;
+        }
+
+        @Override
+        public void order(State parent, ArrayList<State> successors)
+        {
+            successors.sort(Comparator.comparingInt(
+                    s -> s.jointAction != null && this.heuristic.isHelpful(parent, s) ? 0 : 1));
+        }
+    }
+}
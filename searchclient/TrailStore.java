@@ -0,0 +1,120 @@
+package searchclient;
+
+import java.util.Arrays;
+
+/*
+ * Compact storage of the search tree for plan extraction. Every recorded state
+ * gets an int node id; the store keeps, in primitive arrays, the id of its parent
+ * and the joint action that produced it packed as one byte (the Action ordinal)
+ * per agent.
+ *
+ * States that have a trail id do not need to keep their parent State or joint
+ * action array reachable, so the ancestry of the frontier and closed set is
+ * reduced to a few bytes per node.
+ */
+public class TrailStore
+{
+    private static final Action[] ACTIONS = Action.values();
+
+    private final int numAgents;
+    private int[] parents;
+    private byte[] actions;
+    private int size = 0;
+
+    public TrailStore(int numAgents)
+    {
+        this.numAgents = numAgents;
+        this.parents = new int[1 << 16];
+        this.actions = new byte[(1 << 16) * numAgents];
+    }
+
+    // Restores a store of the given size from its arrays, as read from a checkpoint.
+    TrailStore(int numAgents, int[] parents, byte[] actions, int size)
+    {
+        this.numAgents = numAgents;
+        this.parents = parents;
+        this.actions = actions;
+        this.size = size;
+    }
+
+    /*
+     * Records a node reached from parentId by jointAction and returns its id. The
+     * root is recorded with parentId -1 and a null joint action.
+     */
+    public synchronized int add(int parentId, Action[] jointAction)
+    {
+        if (this.size == this.parents.length)
+        {
+            int capacity = this.parents.length * 2;
+            this.parents = Arrays.copyOf(this.parents, capacity);
+            this.actions = Arrays.copyOf(this.actions, capacity * this.numAgents);
+        }
+
+        int id = this.size++;
+        this.parents[id] = parentId;
+        if (jointAction != null)
+        {
+            int offset = id * this.numAgents;
+            for (int agent = 0; agent < this.numAgents; ++agent)
+            {
+                this.actions[offset + agent] = (byte) jointAction[agent].ordinal();
+            }
+        }
+        return id;
+    }
+
+    public int parent(int id)
+    {
+        return this.parents[id];
+    }
+
+    public Action[] jointAction(int id)
+    {
+        Action[] jointAction = new Action[this.numAgents];
+        int offset = id * this.numAgents;
+        for (int agent = 0; agent < this.numAgents; ++agent)
+        {
+            jointAction[agent] = ACTIONS[this.actions[offset + agent]];
+        }
+        return jointAction;
+    }
+
+    /*
+     * Rebuilds the plan leading to node id, which must lie at depth `length`.
+     */
+    public Action[][] extractPlan(int id, int length)
+    {
+        Action[][] plan = new Action[length][];
+        for (int step = length - 1; step >= 0; --step)
+        {
+            plan[step] = this.jointAction(id);
+            id = this.parents[id];
+        }
+        return plan;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    // The arrays themselves, for writing a checkpoint. Only the first size()
+    // entries (times numAgents for the actions) are in use.
+    int[] parentArray()
+    {
+        return this.parents;
+    }
+
+    byte[] actionArray()
+    {
+        return this.actions;
+    }
+
+    /*
+     * Approximate heap footprint in bytes, for status output.
+     */
+    public long footprint()
+    {
+        return this.parents.length * 4L + this.actions.length;
+    }
+}
@@ -0,0 +1,112 @@
+package searchclient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/*
+ * Serialized iterated width search (-iw [k]) for levels whose goals can be
+ * reached one after another.
+ *
+ * IW(k) is a breadth-first search that drops every generated state of novelty
+ * greater than k (see NoveltyTable): states that bring no new atom (k = 1) or
+ * pair of atoms (k = 2) compared to all states generated before. It keeps no
+ * closed set, as a state seen before is never novel, so it needs memory only for
+ * its queue and the novelty table, and it generates at most one state per atom
+ * (per pair for k = 2).
+ *
+ * The level is solved one goal at a time: starting from the current state,
+ * IW(1) and then IW(2) (up to k) look for a state with fewer unsatisfied goals,
+ * which becomes the start of the next round. Levels where reaching a goal needs
+ * more than k objects to be arranged at once, or where a goal has to be undone
+ * to reach another, are not solved.
+ */
+public class WidthSearch
+{
+    // Largest pair table of IW(2)
+    public static long maxPairBytes = 256L << 20;
+
+    public static Action[][] search(State initialState, int maxWidth)
+    {
+        // The rounds are chained through root states with parent pointers
+        SearchContext context = initialState.context.copy();
+        context.operatorDecomposition = false;
+        return run(initialState.withContext(context), maxWidth);
+    }
+
+    private static Action[][] run(State initialState, int maxWidth)
+    {
+        long startTime = System.nanoTime();
+        ArrayList<Action[]> plan = new ArrayList<>();
+        State current = initialState;
+        while (!current.isGoalState())
+        {
+            State next = null;
+            for (int width = 1; width <= maxWidth && next == null; width++)
+            {
+                next = iw(current, width);
+            }
+            if (next == null)
+            {
+                System.err.format("IW(%d) found no state with fewer than %d unsatisfied goals.\n", maxWidth,
+                                  current.getGoalCount());
+                return null;
+            }
+
+            for (Action[] jointAction : next.extractPlan())
+            {
+                plan.add(jointAction);
+            }
+            current = State.relocated(next.level, next.agentRows, next.agentCols, next.boxes, next.context);
+            System.err.format("%d unsatisfied goals after %,d actions, %.3f s\n%s\n", current.getGoalCount(),
+                              plan.size(), (System.nanoTime() - startTime) / 1_000_000_000d, Memory.stringRep());
+        }
+        return plan.toArray(new Action[0][]);
+    }
+
+    /*
+     * IW(width) from start, returning the first state with fewer unsatisfied
+     * goals than start, or null.
+     */
+    private static State iw(State start, int width)
+    {
+        long startTime = System.nanoTime();
+        NoveltyTable novelty = new NoveltyTable(start, width, maxPairBytes);
+        if (novelty.width < width)
+        {
+            return null;
+        }
+
+        ArrayDeque<State> queue = new ArrayDeque<>();
+        novelty.novelty(start);
+        queue.add(start);
+        int goals = start.getGoalCount();
+        long expanded = 0;
+        long generated = 1;
+        int maxQueue = 1;
+        while (!queue.isEmpty())
+        {
+            State s = queue.poll();
+            ++expanded;
+            for (State child : s.getExpandedStates())
+            {
+                ++generated;
+                if (child.getGoalCount() < goals)
+                {
+                    System.err.format("IW(%d): #Expanded: %,d, #Generated: %,d, max queue %,d, table %,d bytes, " +
+                                      "%.3f s.\n", width, expanded, generated, maxQueue, novelty.bytes(),
+                                      (System.nanoTime() - startTime) / 1_000_000_000d);
+                    return child;
+                }
+                if (novelty.novelty(child) <= width)
+                {
+                    queue.add(child);
+                }
+            }
+            maxQueue = Math.max(maxQueue, queue.size());
+        }
+
+        System.err.format("IW(%d) exhausted: #Expanded: %,d, #Generated: %,d, %.3f s.\n", width, expanded, generated,
+                          (System.nanoTime() - startTime) / 1_000_000_000d);
+        return null;
+    }
+}